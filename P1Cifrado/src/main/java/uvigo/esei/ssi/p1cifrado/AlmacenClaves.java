@@ -0,0 +1,174 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Almacen compartido de claves leidas de fichero.
+ *
+ * Cada clave se decodifica una sola vez y se guarda en una cache LRU acotada
+ * indexada por ruta. En cada consulta se comprueban la fecha de modificacion
+ * y el tamaño del fichero; si han cambiado se vuelve a leer y solo se decodifica
+ * de nuevo si el resumen SHA-256 del contenido es distinto, de modo que una
+ * rotacion de claves se aplica sin reiniciar el proceso. Las entradas de un
+ * FicheroClaves se referencian como fichero#nombre.
+ */
+public class AlmacenClaves {
+
+    public static final int TAMANO_MAXIMO = 256;
+
+    private static final String[][] ALGORITMOS = {
+        {"RSA", "BC"}, {"EC", "SunEC"}, {"Ed25519", "SunEC"}, {"X25519", "SunEC"}
+    };
+
+    private static final AlmacenClaves COMPARTIDO = new AlmacenClaves(TAMANO_MAXIMO);
+
+    private final Map<String, Entrada> cache;
+
+    public AlmacenClaves(int tamanoMaximo) {
+        this.cache = new LinkedHashMap<String, Entrada>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entrada> masAntigua) {
+                return size() > tamanoMaximo;
+            }
+        };
+    }
+
+    public static AlmacenClaves compartido() {
+        return COMPARTIDO;
+    }
+
+    /**
+     * La ruta puede ser un fichero de clave (.publica) o una entrada de un
+     * FicheroClaves con la forma fichero#nombre.
+     */
+    public PublicKey clavePublica(String path) throws IOException, GeneralSecurityException {
+        return (PublicKey) this.obtener(path, false);
+    }
+
+    public PrivateKey clavePrivada(String path) throws IOException, GeneralSecurityException {
+        return (PrivateKey) this.obtener(path, true);
+    }
+
+    /**
+     * Varias claves publicas separadas por comas (por ejemplo, los
+     * destinatarios de un paquete).
+     */
+    public List<PublicKey> clavesPublicas(String paths) throws IOException, GeneralSecurityException {
+        List<PublicKey> result = new ArrayList<>();
+        for (String path : paths.split(",")) {
+            result.add(this.clavePublica(path.trim()));
+        }
+        return result;
+    }
+
+    public synchronized void invalidar(String path) {
+        String ruta = normalizar(path);
+        this.cache.remove("privada:" + ruta);
+        this.cache.remove("publica:" + ruta);
+    }
+
+    private synchronized Key obtener(String path, boolean privada) throws IOException, GeneralSecurityException {
+        String nombre = (privada ? "privada:" : "publica:") + normalizar(path);
+        Path fichero = Paths.get(ficheroDe(path));
+        BasicFileAttributes atributos = Files.readAttributes(fichero, BasicFileAttributes.class);
+        long modificacion = atributos.lastModifiedTime().toMillis();
+
+        Entrada entrada = this.cache.get(nombre);
+        if ((entrada != null) && (entrada.modificacion == modificacion) && (entrada.tamano == atributos.size())) {
+            return entrada.clave;
+        }
+
+        long inicio = Metricas.inicio();
+        String nombreEntrada = entradaDe(path);
+        TipoClave tipo = null;
+        byte[] keyBytes;
+        if (nombreEntrada == null) {
+            keyBytes = Files.readAllBytes(fichero);
+        } else {
+            try (FicheroClaves ficheroClaves = new FicheroClaves(fichero)) {
+                tipo = ficheroClaves.getTipo(nombreEntrada);
+                keyBytes = ficheroClaves.getCodificacion(nombreEntrada, privada);
+            }
+        }
+        byte[] resumen = MessageDigest.getInstance("SHA-256").digest(keyBytes);
+        if ((entrada == null) || !Arrays.equals(entrada.resumen, resumen)) {
+            entrada = new Entrada(decodificar(tipo, keyBytes, privada), resumen);
+        }
+        entrada.modificacion = modificacion;
+        entrada.tamano = atributos.size();
+        this.cache.put(nombre, entrada);
+        Metricas.fin(Metricas.Etapa.CARGA_CLAVES, inicio, keyBytes.length);
+        return entrada.clave;
+    }
+
+    private static Key decodificar(TipoClave tipo, byte[] keyBytes, boolean privada) throws GeneralSecurityException {
+        if (tipo != null) {
+            return FicheroClaves.decodificar(tipo, keyBytes, privada);
+        }
+        // Fichero suelto: la codificacion X.509/PKCS#8 incluye el algoritmo, se prueba con cada uno
+        GeneralSecurityException error = null;
+        for (String[] algoritmo : ALGORITMOS) {
+            try {
+                KeyFactory keyFactory = ContextoCripto.factoriaClaves(algoritmo[0], algoritmo[1]);
+                if (privada) {
+                    return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(keyBytes));
+                } else {
+                    return keyFactory.generatePublic(new X509EncodedKeySpec(keyBytes));
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                if (error == null) {
+                    error = new InvalidKeySpecException("Clave no reconocida (RSA, EC, Ed25519 o X25519)");
+                }
+                error.addSuppressed(e);
+            }
+        }
+        throw error;
+    }
+
+    private static String normalizar(String path) {
+        String entrada = entradaDe(path);
+        String fichero = Paths.get(ficheroDe(path)).toAbsolutePath().normalize().toString();
+        return (entrada == null) ? fichero : fichero + "#" + entrada;
+    }
+
+    private static String ficheroDe(String path) {
+        int separador = path.lastIndexOf('#');
+        return (separador < 0) ? path : path.substring(0, separador);
+    }
+
+    private static String entradaDe(String path) {
+        int separador = path.lastIndexOf('#');
+        return (separador < 0) ? null : path.substring(separador + 1);
+    }
+
+    private static class Entrada {
+
+        final Key clave;
+        final byte[] resumen;
+        long modificacion;
+        long tamano;
+
+        Entrada(Key clave, byte[] resumen) {
+            this.clave = clave;
+            this.resumen = resumen;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import javax.crypto.SecretKey;
+
+/**
+ * Añade un destinatario a un paquete existente sin volver a cifrar ni firmar
+ * la factura: con la clave privada de un destinatario que ya tiene el paquete
+ * se recupera la clave AES, se envuelve para la clave publica del nuevo y solo
+ * ese bloque se añade al final del fichero (ver Destinatarios).
+ */
+public class AnadirDestinatario {
+
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.out.println("Uso: java AnadirDestinatario <nombre paquete> <clave privada destinatario actual> <clave publica nuevo destinatario>");
+            System.exit(1);
+        }
+
+        ContextoCripto.registrarProvider();
+        String nombrePaquete = args[0];
+        String clavePrivadaActual = args[1];
+        String clavePublicaNuevo = args[2];
+
+        try {
+            PrivateKey privateKeyActual = AlmacenClaves.compartido().clavePrivada(clavePrivadaActual);
+            PublicKey publicKeyNuevo = AlmacenClaves.compartido().clavePublica(clavePublicaNuevo);
+
+            anadir(Paths.get(nombrePaquete), privateKeyActual, publicKeyNuevo);
+
+            System.out.println("Destinatario " + Destinatarios.huella(publicKeyNuevo) + " añadido a " + nombrePaquete);
+
+        } catch (PaqueteInvalidoException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("Error al añadir el destinatario");
+            e.printStackTrace();
+        }
+    }
+
+    public static void anadir(Path paquete, PrivateKey privateKeyActual, PublicKey publicKeyNuevo) throws Exception {
+        SecretKey claveAES;
+        try (PaqueteMapeado actual = new PaqueteMapeado(paquete)) {
+            claveAES = Destinatarios.abrirClave(actual, privateKeyActual);
+        }
+
+        Paquete nuevo = new Paquete();
+        nuevo.anadirBloque(Destinatarios.nombreBloque(publicKeyNuevo), Destinatarios.envolver(claveAES, publicKeyNuevo));
+        nuevo.anadirAFichero(paquete);
+    }
+}
@@ -0,0 +1,133 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arbol de Merkle SHA-256 sobre un lote de sellos.
+ *
+ * Hoja: SHA-256(0x00 | resumen del paquete | sello de tiempo).
+ * Nodo: SHA-256(0x01 | izquierdo | derecho). Si un nivel tiene un numero
+ * impar de nodos el ultimo sube sin cambios al nivel siguiente. Los prefijos
+ * distintos impiden hacer pasar un nodo interno por una hoja.
+ *
+ * La prueba de inclusion de una hoja es la lista de hermanos desde la hoja
+ * hasta la raiz, cada uno con el lado en el que esta:
+ * <pre>
+ *   num. pasos (int) | por paso: lado (1 byte, 0 = izquierda) | resumen (32 bytes)
+ * </pre>
+ */
+final class ArbolMerkle {
+
+    static final int TAMANO_RESUMEN = 32;
+    private static final byte PREFIJO_HOJA = 0x00;
+    private static final byte PREFIJO_NODO = 0x01;
+    private static final byte IZQUIERDA = 0;
+    private static final byte DERECHA = 1;
+
+    private ArbolMerkle() {
+    }
+
+    static byte[] resumen(byte[] datos) {
+        return sha256().digest(datos);
+    }
+
+    static byte[] hoja(byte[] resumenPaquete, byte[] selloTiempo) {
+        MessageDigest digest = sha256();
+        digest.update(PREFIJO_HOJA);
+        digest.update(resumenPaquete);
+        digest.update(selloTiempo);
+        return digest.digest();
+    }
+
+    static byte[] raiz(List<byte[]> hojas) {
+        List<byte[]> nivel = hojas;
+        while (nivel.size() > 1) {
+            nivel = siguienteNivel(nivel);
+        }
+        return nivel.get(0);
+    }
+
+    /**
+     * Prueba de inclusion codificada de la hoja indicada.
+     */
+    static byte[] prueba(List<byte[]> hojas, int indice) {
+        ByteArrayOutputStream contenido = new ByteArrayOutputStream();
+        List<byte[]> pasos = new ArrayList<>();
+        List<Byte> lados = new ArrayList<>();
+        List<byte[]> nivel = hojas;
+        while (nivel.size() > 1) {
+            int hermano = indice ^ 1;
+            if (hermano < nivel.size()) {
+                pasos.add(nivel.get(hermano));
+                lados.add((hermano < indice) ? IZQUIERDA : DERECHA);
+            }
+            nivel = siguienteNivel(nivel);
+            indice /= 2;
+        }
+        try (DataOutputStream out = new DataOutputStream(contenido)) {
+            out.writeInt(pasos.size());
+            for (int i = 0; i < pasos.size(); i++) {
+                out.writeByte(lados.get(i));
+                out.write(pasos.get(i));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return contenido.toByteArray();
+    }
+
+    /**
+     * Recalcula la raiz a partir de una hoja y su prueba de inclusion.
+     */
+    static byte[] raizDesdePrueba(byte[] hoja, byte[] prueba) throws PaqueteInvalidoException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(prueba));
+            int numPasos = in.readInt();
+            if ((numPasos < 0) || (numPasos > 64) || (prueba.length != 4 + numPasos * (1 + TAMANO_RESUMEN))) {
+                throw new PaqueteInvalidoException("Prueba de inclusion no valida");
+            }
+            byte[] actual = hoja;
+            for (int i = 0; i < numPasos; i++) {
+                byte lado = in.readByte();
+                byte[] hermano = in.readNBytes(TAMANO_RESUMEN);
+                actual = (lado == IZQUIERDA) ? nodo(hermano, actual) : nodo(actual, hermano);
+            }
+            return actual;
+        } catch (IOException e) {
+            Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+            throw new PaqueteInvalidoException("Prueba de inclusion no valida", e);
+        }
+    }
+
+    private static List<byte[]> siguienteNivel(List<byte[]> nivel) {
+        List<byte[]> siguiente = new ArrayList<>((nivel.size() + 1) / 2);
+        for (int i = 0; i < nivel.size(); i += 2) {
+            siguiente.add((i + 1 < nivel.size()) ? nodo(nivel.get(i), nivel.get(i + 1)) : nivel.get(i));
+        }
+        return siguiente;
+    }
+
+    private static byte[] nodo(byte[] izquierdo, byte[] derecho) {
+        MessageDigest digest = sha256();
+        digest.update(PREFIJO_NODO);
+        digest.update(izquierdo);
+        digest.update(derecho);
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
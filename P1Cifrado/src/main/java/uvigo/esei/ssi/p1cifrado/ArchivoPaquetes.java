@@ -0,0 +1,1016 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Archivo de paquetes: guarda muchos paquetes (uno por factura) en unos pocos
+ * ficheros de segmento grandes en lugar de un fichero por paquete.
+ *
+ * Un archivo es un directorio con los segmentos segmento-NNNNNN.p1ca. Solo se
+ * escribe al final del ultimo segmento (el activo); cuando supera el tamaño
+ * maximo se cierra añadiendole el indice y se empieza otro. Al cerrar el
+ * archivo el activo se queda abierto (sin indice) y la siguiente apertura
+ * sigue escribiendo en el.
+ * <pre>
+ *   cabecera: "P1CA" | version (1 byte)
+ *   entradas: por paquete: longitud id (short) | id (UTF-8) | longitud (long, -1 = borrado) | paquete
+ *   indice:   (solo segmentos cerrados) num. entradas (int) | por entrada:
+ *             longitud id (short) | id (UTF-8) | posicion paquete (long) | longitud (long)
+ *   pie:      (solo segmentos cerrados) posicion del indice (long) | "P1CA"
+ * </pre>
+ * Al abrir el archivo se leen los indices de los segmentos cerrados y se
+ * recorren las entradas del activo (descartando la ultima si quedo a medias).
+ * Si un id se repite vale la ultima entrada. Los paquetes sustituidos o
+ * borrados ocupan sitio hasta que se compacta el archivo.
+ *
+ * Los metodos son seguros desde varios hilos, salvo compactar, que no debe
+ * coincidir con lecturas ni recorridos de la misma instancia. El archivo solo
+ * se puede abrir para escribir en una instancia a la vez, pero se puede abrir
+ * a la vez para lectura (abrirLectura) en otras, por ejemplo para recorrerlo
+ * mientras se le siguen añadiendo paquetes. Una instancia de lectura ve los
+ * paquetes que habia al abrirla. Las instancias se excluyen, tambien entre
+ * procesos, bloqueando partes del fichero archivo.bloqueo del directorio: el
+ * escritor bloquea en exclusiva el byte 0 y los lectores comparten el byte 1,
+ * que compactar bloquea en exclusiva. Asi, compactar falla si hay lectores, y
+ * abrir otro escritor o un lector durante la compactacion falla en lugar de
+ * pisar o leer lo que se esta escribiendo.
+ */
+public class ArchivoPaquetes implements Closeable {
+
+    public static final long TAMANO_MAXIMO_SEGMENTO = 256L * 1024 * 1024;
+
+    private static final byte[] MAGIA = {'P', '1', 'C', 'A'};
+    private static final byte VERSION = 1;
+    private static final int TAMANO_CABECERA = MAGIA.length + 1;
+    private static final int TAMANO_PIE = 12;
+    private static final long BORRADO = -1;
+    private static final Pattern NOMBRE_SEGMENTO = Pattern.compile("segmento-(\\d+)\\.p1ca");
+    private static final int TAMANO_BUFFER_RECORRIDO = 1024 * 1024;
+    private static final String FICHERO_BLOQUEO = "archivo.bloqueo";
+    private static final Map<Path, Bloqueo> BLOQUEOS = new HashMap<>();
+
+    private final Path directorio;
+    private final long tamanoMaximo;
+    private final boolean soloLectura;
+    private final TreeMap<Integer, Segmento> segmentos = new TreeMap<>();
+    private final Map<String, Ubicacion> indice = new HashMap<>();
+    private final Bloqueo bloqueo;
+    private boolean bloqueoLiberado;
+    private Segmento activo;
+
+    public ArchivoPaquetes(Path directorio) throws IOException {
+        this(directorio, TAMANO_MAXIMO_SEGMENTO);
+    }
+
+    public ArchivoPaquetes(Path directorio, long tamanoMaximo) throws IOException {
+        this(directorio, tamanoMaximo, false);
+    }
+
+    private ArchivoPaquetes(Path directorio, long tamanoMaximo, boolean soloLectura) throws IOException {
+        this.directorio = directorio;
+        this.tamanoMaximo = tamanoMaximo;
+        this.soloLectura = soloLectura;
+        if (!soloLectura) {
+            Files.createDirectories(directorio);
+        }
+        this.bloqueo = Bloqueo.adquirir(directorio, soloLectura);
+        try {
+            TreeMap<Integer, Path> ficheros = new TreeMap<>();
+            try (DirectoryStream<Path> contenido = Files.newDirectoryStream(directorio)) {
+                for (Path fichero : contenido) {
+                    String nombre = fichero.getFileName().toString();
+                    Matcher m = NOMBRE_SEGMENTO.matcher(nombre);
+                    if (m.matches()) {
+                        ficheros.put(Integer.valueOf(m.group(1)), fichero);
+                    } else if (!soloLectura && m.lookingAt() && nombre.endsWith(".tmp")) {
+                        Files.delete(fichero);  // Compactacion interrumpida
+                    }
+                }
+            }
+            for (Map.Entry<Integer, Path> fichero : ficheros.entrySet()) {
+                Segmento segmento = Segmento.abrir(fichero.getKey(), fichero.getValue(), soloLectura);
+                this.segmentos.put(segmento.numero, segmento);
+                for (Entrada entrada : segmento.entradas) {
+                    this.aplicar(segmento, entrada);
+                }
+            }
+            if (soloLectura) {
+                return;
+            }
+            // Solo el ultimo segmento puede estar abierto; si no, se cierra ahora
+            for (Segmento segmento : this.segmentos.values()) {
+                if (!segmento.cerrado && (segmento != this.segmentos.lastEntry().getValue())) {
+                    segmento.sellar();
+                }
+            }
+            if (!this.segmentos.isEmpty() && !this.segmentos.lastEntry().getValue().cerrado) {
+                this.activo = this.segmentos.lastEntry().getValue();
+            }
+        } catch (IOException | RuntimeException ex) {
+            try {
+                this.cerrarCanales();
+            } finally {
+                this.liberarBloqueo();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Abre para lectura un archivo existente, aunque otra instancia (o proceso)
+     * lo tenga abierto para escribir. No se puede añadir, eliminar ni compactar.
+     */
+    public static ArchivoPaquetes abrirLectura(Path directorio) throws IOException {
+        return new ArchivoPaquetes(directorio, TAMANO_MAXIMO_SEGMENTO, true);
+    }
+
+    private void liberarBloqueo() throws IOException {
+        if (this.bloqueoLiberado) {
+            return;  // Ya cerrado
+        }
+        this.bloqueoLiberado = true;
+        this.bloqueo.liberar(this.soloLectura);
+    }
+
+    public static void main(String[] args) {
+        if ((args.length < 2) || !ordenValida(args)) {
+            System.out.println("Uso: java ArchivoPaquetes <directorio archivo> anadir <paquete> [<paquete> ...]");
+            System.out.println("     java ArchivoPaquetes <directorio archivo> extraer <id> <nombre paquete>");
+            System.out.println("     java ArchivoPaquetes <directorio archivo> eliminar <id>");
+            System.out.println("     java ArchivoPaquetes <directorio archivo> listar");
+            System.out.println("     java ArchivoPaquetes <directorio archivo> compactar");
+            System.out.println("El id de cada paquete añadido es el nombre de su fichero.");
+            System.exit(1);
+        }
+
+        Path directorio = Paths.get(args[0]);
+        boolean lectura = args[1].equals("listar") || args[1].equals("extraer");
+        try (ArchivoPaquetes archivo = lectura ? abrirLectura(directorio) : new ArchivoPaquetes(directorio)) {
+            switch (args[1]) {
+                case "anadir":
+                    for (int i = 2; i < args.length; i++) {
+                        Path paquete = Paths.get(args[i]);
+                        archivo.anadir(paquete.getFileName().toString(), paquete);
+                    }
+                    System.out.println((args.length - 2) + " paquetes añadidos a " + args[0]);
+                    break;
+                case "extraer":
+                    archivo.extraer(args[2], Paths.get(args[3]));
+                    System.out.println("Paquete " + args[2] + " extraido en " + args[3]);
+                    break;
+                case "eliminar":
+                    if (!archivo.eliminar(args[2])) {
+                        System.out.println("No existe el paquete " + args[2] + " en " + args[0]);
+                        System.exit(1);
+                    }
+                    System.out.println("Paquete " + args[2] + " eliminado de " + args[0]);
+                    break;
+                case "listar":
+                    for (String id : archivo.getIds()) {
+                        System.out.println(id + "\t" + archivo.getTamano(id));
+                    }
+                    break;
+                default:
+                    archivo.compactar();
+                    System.out.println("Archivo compactado: " + archivo.getIds().size() + " paquetes");
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        } catch (Exception e) {
+            System.err.println("Error al acceder al archivo de paquetes");
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean ordenValida(String[] args) {
+        switch (args[1]) {
+            case "anadir":
+                return args.length > 2;
+            case "extraer":
+                return args.length == 4;
+            case "eliminar":
+                return args.length == 3;
+            case "listar":
+            case "compactar":
+                return args.length == 2;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Añade (o sustituye) el paquete con ese id copiando el fichero al final
+     * del segmento activo.
+     */
+    public synchronized void anadir(String id, Path paquete) throws IOException {
+        this.comprobarEscritura();
+        try (FileChannel origen = FileChannel.open(paquete, StandardOpenOption.READ)) {
+            long longitud = origen.size();
+            Segmento segmento = this.segmentoParaEscribir(longitud);
+            this.aplicar(segmento, segmento.anadir(id, longitud, origen, 0));
+        }
+    }
+
+    public synchronized void anadir(String id, byte[] paquete) throws IOException {
+        this.comprobarEscritura();
+        Segmento segmento = this.segmentoParaEscribir(paquete.length);
+        this.aplicar(segmento, segmento.anadir(id, paquete));
+    }
+
+    /**
+     * Borra el paquete del archivo; devuelve false si no estaba.
+     */
+    public synchronized boolean eliminar(String id) throws IOException {
+        this.comprobarEscritura();
+        if (!this.indice.containsKey(id)) {
+            return false;
+        }
+        Segmento segmento = this.segmentoParaEscribir(0);
+        this.aplicar(segmento, segmento.anadir(id, (byte[]) null));
+        return true;
+    }
+
+    public synchronized List<String> getIds() {
+        return new ArrayList<>(new TreeSet<>(this.indice.keySet()));
+    }
+
+    public synchronized boolean contiene(String id) {
+        return this.indice.containsKey(id);
+    }
+
+    public long getTamano(String id) throws IOException {
+        return this.ubicacion(id).entrada.longitud;
+    }
+
+    public byte[] leer(String id) throws IOException {
+        Ubicacion ubicacion = this.ubicacion(id);
+        if (ubicacion.entrada.longitud > Integer.MAX_VALUE - 8) {
+            throw new IOException("El paquete " + id + " es demasiado grande para leerlo en memoria");
+        }
+        return ubicacion.segmento.leer(ubicacion.entrada.posicion, (int) ubicacion.entrada.longitud);
+    }
+
+    /**
+     * Stream con el contenido del paquete, leido por posicion del segmento.
+     */
+    public InputStream abrir(String id) throws IOException {
+        Ubicacion ubicacion = this.ubicacion(id);
+        return new EntradaRegion(ubicacion.segmento.canal, ubicacion.entrada.posicion, ubicacion.entrada.longitud);
+    }
+
+    /**
+     * Vista del paquete para leer sus bloques sin copiarlo fuera del archivo.
+     */
+    public PaqueteMapeado abrirPaquete(String id) throws IOException {
+        Ubicacion ubicacion = this.ubicacion(id);
+        return new PaqueteMapeado(ubicacion.segmento.ruta, ubicacion.entrada.posicion, ubicacion.entrada.longitud);
+    }
+
+    public void extraer(String id, Path destino) throws IOException {
+        Ubicacion ubicacion = this.ubicacion(id);
+        Path temporal = destino.resolveSibling(destino.getFileName() + ".tmp");
+        try (FileChannel salida = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ubicacion.segmento.copiar(ubicacion.entrada.posicion, ubicacion.entrada.longitud, salida);
+        }
+        Files.move(temporal, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Recorre los paquetes vigentes en el orden en que estan en disco, leyendo
+     * cada segmento de principio a fin (los sustituidos o borrados se saltan).
+     * Los paquetes añadidos durante el recorrido pueden no aparecer; no se
+     * debe compactar mientras tanto.
+     */
+    public void recorrer(ProcesadorPaquete procesador) throws IOException {
+        List<Segmento> pendientes;
+        Map<Segmento, List<Entrada>> vigentes = new HashMap<>();
+        synchronized (this) {
+            pendientes = new ArrayList<>(this.segmentos.values());
+            for (Segmento segmento : pendientes) {
+                List<Entrada> entradas = new ArrayList<>();
+                for (Entrada entrada : segmento.entradas) {
+                    Ubicacion ubicacion = this.indice.get(entrada.id);
+                    if ((ubicacion != null) && (ubicacion.entrada == entrada)) {
+                        entradas.add(entrada);
+                    }
+                }
+                vigentes.put(segmento, entradas);
+            }
+        }
+        for (Segmento segmento : pendientes) {
+            List<Entrada> entradas = vigentes.get(segmento);
+            if (entradas.isEmpty()) {
+                continue;
+            }
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(segmento.ruta), TAMANO_BUFFER_RECORRIDO)) {
+                long posicion = 0;
+                for (Entrada entrada : entradas) {
+                    in.skipNBytes(entrada.posicion - posicion);
+                    EntradaAcotada paquete = new EntradaAcotada(in, entrada.longitud);
+                    procesador.procesar(entrada.id, paquete);
+                    paquete.saltarResto();
+                    posicion = entrada.posicion + entrada.longitud;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reescribe el archivo solo con los paquetes vigentes, en segmentos
+     * nuevos, y borra los anteriores.
+     *
+     * Los segmentos nuevos se escriben como temporales y se renombran ya
+     * cerrados, con numeros mayores que los anteriores; despues se borran los
+     * anteriores de mas antiguo a mas reciente. Si se interrumpe, al abrir el
+     * archivo los segmentos que queden dan el mismo resultado: una entrada
+     * antigua solo puede seguir en disco si tambien siguen las posteriores del
+     * mismo id (incluido su borrado).
+     *
+     * Falla si el archivo esta abierto para lectura en otra instancia.
+     */
+    public synchronized void compactar() throws IOException {
+        this.comprobarEscritura();
+        this.bloqueo.bloquearCompactacion(this.directorio);
+        try {
+            this.compactarSegmentos();
+        } finally {
+            this.bloqueo.liberarCompactacion();
+        }
+    }
+
+    private void compactarSegmentos() throws IOException {
+        if (this.activo != null) {
+            this.activo.sellar();
+            this.activo = null;
+        }
+        List<Segmento> anteriores = new ArrayList<>(this.segmentos.values());
+        if (anteriores.isEmpty()) {
+            return;
+        }
+
+        TreeMap<Integer, Segmento> nuevos = new TreeMap<>();
+        Map<String, Ubicacion> nuevoIndice = new HashMap<>();
+        int numero = this.segmentos.lastKey() + 1;
+        Segmento destino = null;
+        try {
+            for (Segmento segmento : anteriores) {
+                for (Entrada entrada : segmento.entradas) {
+                    Ubicacion ubicacion = this.indice.get(entrada.id);
+                    if ((ubicacion == null) || (ubicacion.entrada != entrada)) {
+                        continue;
+                    }
+                    if ((destino != null) && destino.lleno(entrada.longitud, this.tamanoMaximo)) {
+                        nuevos.put(destino.numero, destino.publicar());
+                        destino = null;
+                    }
+                    if (destino == null) {
+                        destino = Segmento.crear(numero, this.rutaSegmento(numero, ".tmp"));
+                        numero++;
+                    }
+                    Entrada copia = destino.anadir(entrada.id, entrada.longitud, segmento.canal, entrada.posicion);
+                    nuevoIndice.put(entrada.id, new Ubicacion(destino, copia));
+                }
+            }
+            if (destino != null) {
+                nuevos.put(destino.numero, destino.publicar());
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (destino != null) {
+                destino.canal.close();
+                Files.deleteIfExists(destino.ruta);
+            }
+            throw ex;
+        }
+
+        for (Segmento segmento : anteriores) {
+            segmento.canal.close();
+            Files.delete(segmento.ruta);
+        }
+        this.segmentos.clear();
+        this.segmentos.putAll(nuevos);
+        this.indice.clear();
+        this.indice.putAll(nuevoIndice);
+    }
+
+    /**
+     * Cierra el archivo. El segmento activo no se sella: se guarda en disco tal
+     * cual y la siguiente apertura sigue añadiendo paquetes en el.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (this.activo != null) {
+                Segmento segmento = this.activo;
+                this.activo = null;
+                segmento.canal.force(true);
+            }
+        } finally {
+            try {
+                this.cerrarCanales();
+            } finally {
+                this.liberarBloqueo();
+            }
+        }
+    }
+
+    private void cerrarCanales() throws IOException {
+        IOException error = null;
+        for (Segmento segmento : this.segmentos.values()) {
+            try {
+                segmento.canal.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void comprobarEscritura() throws IOException {
+        if (this.soloLectura) {
+            throw new IOException("El archivo " + this.directorio + " esta abierto solo para lectura");
+        }
+    }
+
+    private synchronized Ubicacion ubicacion(String id) throws IOException {
+        Ubicacion ubicacion = this.indice.get(id);
+        if (ubicacion == null) {
+            throw new IOException("No existe el paquete " + id + " en el archivo " + this.directorio);
+        }
+        return ubicacion;
+    }
+
+    private void aplicar(Segmento segmento, Entrada entrada) {
+        if (entrada.longitud == BORRADO) {
+            this.indice.remove(entrada.id);
+        } else {
+            this.indice.put(entrada.id, new Ubicacion(segmento, entrada));
+        }
+    }
+
+    /*
+     * Segmento activo con sitio para una entrada de esa longitud; si no cabe
+     * se cierra el actual y se empieza otro (una entrada mayor que el tamaño
+     * maximo va sola en su segmento).
+     */
+    private Segmento segmentoParaEscribir(long longitud) throws IOException {
+        if ((this.activo != null) && this.activo.lleno(longitud, this.tamanoMaximo)) {
+            this.activo.sellar();
+            this.activo = null;
+        }
+        if (this.activo == null) {
+            int numero = this.segmentos.isEmpty() ? 1 : this.segmentos.lastKey() + 1;
+            this.activo = Segmento.crear(numero, this.rutaSegmento(numero, ""));
+            this.segmentos.put(numero, this.activo);
+        }
+        return this.activo;
+    }
+
+    private Path rutaSegmento(int numero, String sufijo) {
+        return this.directorio.resolve(String.format("segmento-%06d.p1ca%s", numero, sufijo));
+    }
+
+    /**
+     * Recibe cada paquete de un recorrido del archivo. El stream solo es
+     * valido durante la llamada.
+     */
+    public interface ProcesadorPaquete {
+
+        void procesar(String id, InputStream paquete) throws IOException;
+    }
+
+    private static class Entrada {
+
+        final String id;
+        final long posicion;
+        final long longitud;
+
+        Entrada(String id, long posicion, long longitud) {
+            this.id = id;
+            this.posicion = posicion;
+            this.longitud = longitud;
+        }
+    }
+
+    private static class Ubicacion {
+
+        final Segmento segmento;
+        final Entrada entrada;
+
+        Ubicacion(Segmento segmento, Entrada entrada) {
+            this.segmento = segmento;
+            this.entrada = entrada;
+        }
+    }
+
+    private static class Segmento {
+
+        final int numero;
+        Path ruta;
+        FileChannel canal;
+        final List<Entrada> entradas = new ArrayList<>();
+        boolean cerrado;
+        private long tamano;
+
+        private Segmento(int numero, Path ruta, FileChannel canal) {
+            this.numero = numero;
+            this.ruta = ruta;
+            this.canal = canal;
+        }
+
+        static Segmento crear(int numero, Path ruta) throws IOException {
+            FileChannel canal = FileChannel.open(ruta, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segmento segmento = new Segmento(numero, ruta, canal);
+            ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA).put(MAGIA).put(VERSION).flip();
+            segmento.escribir(cabecera);
+            return segmento;
+        }
+
+        /*
+         * Abre un segmento existente. Para lectura no se modifica: del
+         * segmento activo de otro escritor se toman las entradas completas y
+         * uno recien creado puede no tener aun la cabecera entera.
+         */
+        static Segmento abrir(int numero, Path ruta, boolean soloLectura) throws IOException {
+            FileChannel canal = soloLectura ? FileChannel.open(ruta, StandardOpenOption.READ)
+                    : FileChannel.open(ruta, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segmento segmento = new Segmento(numero, ruta, canal);
+            try {
+                segmento.tamano = canal.size();
+                if (soloLectura && (segmento.tamano < TAMANO_CABECERA)) {
+                    return segmento;
+                }
+                byte[] cabecera = segmento.leer(0, (int) Math.min(TAMANO_CABECERA, segmento.tamano));
+                if ((cabecera.length != TAMANO_CABECERA) || !Arrays.equals(cabecera, 0, MAGIA.length, MAGIA, 0, MAGIA.length)
+                        || (cabecera[MAGIA.length] != VERSION)) {
+                    throw new IOException("No es un segmento de archivo de paquetes: " + ruta);
+                }
+                if (!segmento.leerIndice()) {
+                    segmento.recuperar(!soloLectura);
+                }
+                return segmento;
+            } catch (IOException | RuntimeException ex) {
+                canal.close();
+                throw ex;
+            }
+        }
+
+        /*
+         * Lee el indice del final de un segmento cerrado; devuelve false si no
+         * lo tiene.
+         */
+        private boolean leerIndice() throws IOException {
+            if (this.tamano < TAMANO_CABECERA + TAMANO_PIE) {
+                return false;
+            }
+            ByteBuffer pie = ByteBuffer.wrap(this.leer(this.tamano - TAMANO_PIE, TAMANO_PIE));
+            long posicionIndice = pie.getLong();
+            if (!Arrays.equals(pie.array(), 8, 12, MAGIA, 0, MAGIA.length)
+                    || (posicionIndice < TAMANO_CABECERA) || (posicionIndice > this.tamano - TAMANO_PIE - 4)) {
+                return false;
+            }
+            ByteBuffer indice = ByteBuffer.wrap(this.leer(posicionIndice, (int) (this.tamano - TAMANO_PIE - posicionIndice)));
+            int numEntradas = indice.getInt();
+            for (int i = 0; i < numEntradas; i++) {
+                byte[] id = new byte[indice.getShort() & 0xFFFF];
+                indice.get(id);
+                this.entradas.add(new Entrada(new String(id, Paquete.CHARSET), indice.getLong(), indice.getLong()));
+            }
+            if (indice.hasRemaining()) {
+                throw new IOException("Indice de segmento corrupto: " + this.ruta);
+            }
+            this.cerrado = true;
+            return true;
+        }
+
+        /*
+         * Recorre las entradas del segmento activo y, si se indica, corta el
+         * fichero tras la ultima completa (la siguiente se estaba escribiendo
+         * cuando se interrumpio el programa).
+         */
+        private void recuperar(boolean cortar) throws IOException {
+            long posicion = TAMANO_CABECERA;
+            ByteBuffer cabecera = ByteBuffer.allocate(2 + 0xFFFF + 8);
+            while (posicion + 2 + 8 <= this.tamano) {
+                cabecera.clear().limit((int) Math.min(cabecera.capacity(), this.tamano - posicion));
+                while (cabecera.hasRemaining() && (this.canal.read(cabecera, posicion + cabecera.position()) >= 0)) {
+                }
+                cabecera.flip();
+                int longitudId = cabecera.getShort() & 0xFFFF;
+                if (cabecera.remaining() < longitudId + 8) {
+                    break;
+                }
+                String id = new String(cabecera.array(), 2, longitudId, Paquete.CHARSET);
+                long longitud = cabecera.getLong(2 + longitudId);
+                long inicio = posicion + 2 + longitudId + 8;
+                if ((longitud < BORRADO) || (inicio + Math.max(0, longitud) > this.tamano)) {
+                    break;
+                }
+                this.entradas.add(new Entrada(id, inicio, longitud));
+                posicion = inicio + Math.max(0, longitud);
+            }
+            if (posicion < this.tamano) {
+                if (cortar) {
+                    this.canal.truncate(posicion);
+                }
+                this.tamano = posicion;
+            }
+        }
+
+        boolean lleno(long longitud, long tamanoMaximo) {
+            return !this.entradas.isEmpty() && (this.tamano + longitud > tamanoMaximo);
+        }
+
+        /*
+         * Escribe una entrada con el contenido de otro canal.
+         */
+        Entrada anadir(String id, long longitud, FileChannel origen, long posicionOrigen) throws IOException {
+            long inicioEntrada = this.tamano;
+            try {
+                long posicion = this.escribirCabeceraEntrada(id, longitud);
+                long copiados = 0;
+                while (copiados < longitud) {
+                    long n = origen.transferTo(posicionOrigen + copiados, longitud - copiados, this.canal);
+                    if (n <= 0) {
+                        throw new IOException("El paquete " + id + " ha cambiado mientras se copiaba");
+                    }
+                    copiados += n;
+                }
+                this.tamano += longitud;
+                return this.registrar(id, posicion, longitud);
+            } catch (IOException | RuntimeException ex) {
+                this.descartar(inicioEntrada);
+                throw ex;
+            }
+        }
+
+        /*
+         * Escribe una entrada con ese contenido; con contenido null es la
+         * marca de borrado del id.
+         */
+        Entrada anadir(String id, byte[] contenido) throws IOException {
+            long inicioEntrada = this.tamano;
+            long longitud = (contenido == null) ? BORRADO : contenido.length;
+            try {
+                long posicion = this.escribirCabeceraEntrada(id, longitud);
+                if (contenido != null) {
+                    this.escribir(ByteBuffer.wrap(contenido));
+                }
+                return this.registrar(id, posicion, longitud);
+            } catch (IOException | RuntimeException ex) {
+                this.descartar(inicioEntrada);
+                throw ex;
+            }
+        }
+
+        private long escribirCabeceraEntrada(String id, long longitud) throws IOException {
+            byte[] bytesId = id.getBytes(Paquete.CHARSET);
+            if (bytesId.length > 0xFFFF) {
+                throw new IOException("Id de paquete demasiado largo: " + id);
+            }
+            this.canal.position(this.tamano);
+            this.escribir(ByteBuffer.allocate(2 + bytesId.length + 8)
+                    .putShort((short) bytesId.length).put(bytesId).putLong(longitud).flip());
+            return this.tamano;
+        }
+
+        private Entrada registrar(String id, long posicion, long longitud) {
+            Entrada entrada = new Entrada(id, posicion, longitud);
+            this.entradas.add(entrada);
+            return entrada;
+        }
+
+        /*
+         * Quita lo escrito de una entrada que no se pudo completar, para que la
+         * siguiente no quede detras de una a medias.
+         */
+        private void descartar(long inicioEntrada) throws IOException {
+            this.canal.truncate(inicioEntrada);
+            this.tamano = inicioEntrada;
+        }
+
+        /*
+         * Añade el indice y el pie y pasa el segmento a solo lectura.
+         */
+        void sellar() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(this.entradas.size());
+            for (Entrada entrada : this.entradas) {
+                byte[] id = entrada.id.getBytes(Paquete.CHARSET);
+                out.writeShort(id.length);
+                out.write(id);
+                out.writeLong(entrada.posicion);
+                out.writeLong(entrada.longitud);
+            }
+            out.writeLong(this.tamano);
+            out.write(MAGIA);
+            this.canal.position(this.tamano);
+            this.escribir(ByteBuffer.wrap(bytes.toByteArray()));
+            this.canal.force(true);
+            this.cerrado = true;
+        }
+
+        /*
+         * Cierra un segmento temporal de la compactacion y lo renombra con su
+         * nombre definitivo.
+         */
+        Segmento publicar() throws IOException {
+            this.sellar();
+            this.canal.close();
+            Path definitivo = this.ruta.resolveSibling(this.ruta.getFileName().toString().replace(".tmp", ""));
+            Files.move(this.ruta, definitivo, StandardCopyOption.ATOMIC_MOVE);
+            this.ruta = definitivo;
+            this.canal = FileChannel.open(definitivo, StandardOpenOption.READ);
+            return this;
+        }
+
+        private void escribir(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                this.tamano += this.canal.write(buffer);
+            }
+        }
+
+        byte[] leer(long posicion, int longitud) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(longitud);
+            while (buffer.hasRemaining()) {
+                if (this.canal.read(buffer, posicion + buffer.position()) < 0) {
+                    throw new IOException("Segmento truncado: " + this.ruta);
+                }
+            }
+            return buffer.array();
+        }
+
+        void copiar(long posicion, long longitud, FileChannel destino) throws IOException {
+            long copiados = 0;
+            while (copiados < longitud) {
+                long n = this.canal.transferTo(posicion + copiados, longitud - copiados, destino);
+                if (n <= 0) {
+                    throw new IOException("Segmento truncado: " + this.ruta);
+                }
+                copiados += n;
+            }
+        }
+    }
+
+    /*
+     * Bloqueo de un directorio, compartido por todas las instancias de este
+     * proceso que lo tienen abierto. Se usa un solo canal del fichero de
+     * bloqueo por directorio, porque cerrar otro canal del mismo fichero
+     * liberaria los bloqueos de todo el proceso.
+     */
+    private static final class Bloqueo {
+
+        private final Path clave;
+        private final FileChannel canal;
+        private final boolean escribible;
+        private FileLock escritor;
+        private FileLock lectores;
+        private FileLock compactacion;
+        private int numLectores;
+
+        private Bloqueo(Path clave, FileChannel canal, boolean escribible) {
+            this.clave = clave;
+            this.canal = canal;
+            this.escribible = escribible;
+        }
+
+        static Bloqueo adquirir(Path directorio, boolean soloLectura) throws IOException {
+            Path clave = directorio.toAbsolutePath().normalize();
+            synchronized (BLOQUEOS) {
+                Bloqueo bloqueo = BLOQUEOS.get(clave);
+                boolean nuevo = (bloqueo == null);
+                if (nuevo) {
+                    bloqueo = abrir(clave);
+                }
+                try {
+                    if (soloLectura) {
+                        bloqueo.bloquearLectura(directorio);
+                    } else {
+                        bloqueo.bloquearEscritura(directorio);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (nuevo) {
+                        bloqueo.canal.close();
+                    }
+                    throw e;
+                }
+                BLOQUEOS.put(clave, bloqueo);
+                return bloqueo;
+            }
+        }
+
+        /*
+         * Un lector sin permiso de escritura en el directorio abre el fichero
+         * de bloqueo solo para leer (el bloqueo compartido no necesita mas).
+         */
+        private static Bloqueo abrir(Path clave) throws IOException {
+            Path fichero = clave.resolve(FICHERO_BLOQUEO);
+            try {
+                return new Bloqueo(clave, FileChannel.open(fichero, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE), true);
+            } catch (AccessDeniedException e) {
+                return new Bloqueo(clave, FileChannel.open(fichero, StandardOpenOption.READ), false);
+            }
+        }
+
+        private void bloquearEscritura(Path directorio) throws IOException {
+            if (this.escritor != null) {
+                throw new IOException("El archivo " + directorio + " ya esta abierto");
+            }
+            if (!this.escribible) {
+                throw new IOException("No se puede escribir en el archivo " + directorio);
+            }
+            this.escritor = this.canal.tryLock(0, 1, false);
+            if (this.escritor == null) {
+                throw new IOException("El archivo " + directorio + " esta abierto en otro proceso");
+            }
+        }
+
+        private void bloquearLectura(Path directorio) throws IOException {
+            if (this.numLectores == 0) {
+                if (this.compactacion != null) {
+                    throw new IOException("El archivo " + directorio + " se esta compactando");
+                }
+                this.lectores = this.canal.tryLock(1, 1, true);
+                if (this.lectores == null) {
+                    throw new IOException("El archivo " + directorio + " se esta compactando en otro proceso");
+                }
+            }
+            this.numLectores++;
+        }
+
+        void bloquearCompactacion(Path directorio) throws IOException {
+            synchronized (BLOQUEOS) {
+                if (this.numLectores > 0) {
+                    throw new IOException("No se puede compactar el archivo " + directorio + " mientras esta abierto para lectura");
+                }
+                this.compactacion = this.canal.tryLock(1, 1, false);
+                if (this.compactacion == null) {
+                    throw new IOException("No se puede compactar el archivo " + directorio
+                                          + " mientras esta abierto para lectura en otro proceso");
+                }
+            }
+        }
+
+        void liberarCompactacion() throws IOException {
+            synchronized (BLOQUEOS) {
+                this.compactacion.release();
+                this.compactacion = null;
+            }
+        }
+
+        void liberar(boolean soloLectura) throws IOException {
+            synchronized (BLOQUEOS) {
+                try {
+                    if (!soloLectura) {
+                        this.escritor.release();
+                        this.escritor = null;
+                    } else if (--this.numLectores == 0) {
+                        this.lectores.release();
+                        this.lectores = null;
+                    }
+                } finally {
+                    if ((this.escritor == null) && (this.numLectores == 0)) {
+                        BLOQUEOS.remove(this.clave);
+                        this.canal.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Region de un segmento leida por posicion, sin mover el canal compartido.
+     */
+    private static class EntradaRegion extends InputStream {
+
+        private final FileChannel canal;
+        private long posicion;
+        private final long fin;
+
+        EntradaRegion(FileChannel canal, long posicion, long longitud) {
+            this.canal = canal;
+            this.posicion = posicion;
+            this.fin = posicion + longitud;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (this.read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.posicion >= this.fin) {
+                return -1;
+            }
+            int n = this.canal.read(ByteBuffer.wrap(b, off, (int) Math.min(len, this.fin - this.posicion)), this.posicion);
+            if (n < 0) {
+                throw new IOException("Segmento truncado");
+            }
+            this.posicion += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, this.fin - this.posicion);
+        }
+    }
+
+    /*
+     * Los primeros bytes de un stream; cerrarlo no cierra el stream de debajo.
+     */
+    private static class EntradaAcotada extends FilterInputStream {
+
+        private long restantes;
+
+        EntradaAcotada(InputStream in, long longitud) {
+            super(in);
+            this.restantes = longitud;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.restantes <= 0) {
+                return -1;
+            }
+            int b = this.in.read();
+            if (b < 0) {
+                throw new IOException("Segmento truncado");
+            }
+            this.restantes--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.restantes <= 0) {
+                return -1;
+            }
+            int n = this.in.read(b, off, (int) Math.min(len, this.restantes));
+            if (n < 0) {
+                throw new IOException("Segmento truncado");
+            }
+            this.restantes -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long saltados = this.in.skip(Math.min(n, this.restantes));
+            this.restantes -= saltados;
+            return saltados;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(this.in.available(), this.restantes);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void saltarResto() throws IOException {
+            this.in.skipNBytes(this.restantes);
+            this.restantes = 0;
+        }
+    }
+}
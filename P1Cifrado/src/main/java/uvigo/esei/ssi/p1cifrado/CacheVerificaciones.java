@@ -0,0 +1,440 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cache de resultados de verificacion de firmas, para no repetir la
+ * verificacion de un paquete que no ha cambiado en cada paso por el que pasa
+ * (sellado, desempaquetado, auditoria).
+ *
+ * Cada resultado se identifica por (SHA-256 de la clave publica, SHA-256 de
+ * los datos firmados, SHA-256 de la firma). Hay un nivel en memoria (LRU
+ * acotada) y, si se indica un fichero, un nivel en disco que se conserva entre
+ * ejecuciones y se puede compartir entre procesos. El fichero tiene un tamaño
+ * fijo: es una tabla asociativa por conjuntos de VIAS ranuras y, si el
+ * conjunto de un resultado nuevo esta lleno, se sustituye una ranura al azar.
+ * <pre>
+ *   cabecera: "P1CV" | version (1 byte) | relleno (3 bytes) | num. conjuntos (int) | generacion (long) | relleno hasta 128 bytes
+ *   ranuras:  por ranura (128 bytes): estado (1 byte: 0 libre, 1 valida, 2 no valida) |
+ *             clave publica (32) | datos (32) | firma (32) | HMAC de lo anterior (16) | relleno
+ * </pre>
+ * Al revocar una clave se borran sus resultados de los dos niveles y se
+ * incrementa la generacion del fichero; los demas procesos vacian su nivel en
+ * memoria al ver el cambio.
+ *
+ * Cada ranura lleva un HMAC-SHA256 (truncado a 16 bytes) con una clave propia
+ * de la instalacion, guardada en el fichero FICHERO.clave (solo legible por su
+ * dueño) que se crea junto con la cache. Una ranura manipulada, o escrita a
+ * medias, cuenta como libre, de modo que quien pueda escribir en la cache pero
+ * no leer la clave no puede hacer pasar por valida ninguna firma. El HMAC no
+ * impide volver a escribir en el fichero una ranura autentica borrada al
+ * revocar su clave; para eso la cache debe tener los mismos permisos que las
+ * claves publicas.
+ *
+ * La instancia compartida se configura con -Dp1cifrado.verificaciones.memoria
+ * (entradas en memoria, 4096 por defecto; 0 la desactiva),
+ * -Dp1cifrado.verificaciones.fichero, -Dp1cifrado.verificaciones.clave (por
+ * defecto el fichero con la extension .clave) y
+ * -Dp1cifrado.verificaciones.conjuntos (tamaño del fichero si se crea, 16384
+ * conjuntos = 8 MB por defecto).
+ */
+public class CacheVerificaciones implements Closeable {
+
+    public static final int TAMANO_MEMORIA = 4096;
+    public static final int CONJUNTOS = 16384;
+
+    private static final byte[] MAGIA = {'P', '1', 'C', 'V'};
+    private static final byte VERSION = 2;
+    private static final int TAMANO_CABECERA = 128;
+    private static final int POSICION_GENERACION = 12;
+    private static final int TAMANO_RANURA = 128;
+    private static final int VIAS = 4;
+    private static final int TAMANO_ENTRADA = 96;
+    private static final int TAMANO_HMAC = 16;
+    private static final int TAMANO_CLAVE_HMAC = 32;
+    private static final String ALGORITMO_HMAC = "HmacSHA256";
+    private static final byte LIBRE = 0;
+    private static final byte VALIDA = 1;
+    private static final byte NO_VALIDA = 2;
+
+    private final Map<ByteBuffer, Boolean> memoria;
+    private final FileChannel canal;
+    private final Mac hmac;
+    private final int numConjuntos;
+    private long generacion;
+
+    /**
+     * Cache solo en memoria.
+     */
+    public CacheVerificaciones(int tamanoMemoria) {
+        this.memoria = crearMemoria(tamanoMemoria);
+        this.canal = null;
+        this.hmac = null;
+        this.numConjuntos = 0;
+    }
+
+    /**
+     * Cache en memoria y en el fichero indicado, que se crea con el numero de
+     * conjuntos dado si no existe. La clave del HMAC esta en FICHERO.clave.
+     */
+    public CacheVerificaciones(int tamanoMemoria, Path fichero, int conjuntos) throws IOException {
+        this(tamanoMemoria, fichero, conjuntos, rutaClave(fichero));
+    }
+
+    /**
+     * Como el anterior, con la clave del HMAC en el fichero indicado (se crea
+     * si no existe).
+     */
+    public CacheVerificaciones(int tamanoMemoria, Path fichero, int conjuntos, Path ficheroClave) throws IOException {
+        this.memoria = crearMemoria(tamanoMemoria);
+        this.hmac = crearHmac(ficheroClave);
+        if (!Files.exists(fichero)) {
+            crearFichero(fichero, conjuntos);
+        }
+        this.canal = FileChannel.open(fichero, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer cabecera = this.leer(0, TAMANO_CABECERA);
+            if (!Arrays.equals(cabecera.array(), 0, MAGIA.length, MAGIA, 0, MAGIA.length)) {
+                throw new IOException("No es un fichero de cache de verificaciones: " + fichero);
+            }
+            if (cabecera.get(MAGIA.length) != VERSION) {
+                throw new IOException("Version no soportada de la cache de verificaciones (borre " + fichero
+                        + " para crearla de nuevo)");
+            }
+            this.numConjuntos = cabecera.getInt(8);
+            if ((this.numConjuntos <= 0)
+                    || (this.canal.size() < TAMANO_CABECERA + (long) this.numConjuntos * VIAS * TAMANO_RANURA)) {
+                throw new IOException("Fichero de cache de verificaciones truncado: " + fichero);
+            }
+            this.generacion = cabecera.getLong(POSICION_GENERACION);
+        } catch (IOException | RuntimeException ex) {
+            this.canal.close();
+            throw ex;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (!((args.length == 3) && args[1].equals("revocar")) && !((args.length == 2) && args[1].equals("vaciar"))) {
+            System.out.println("Uso: java CacheVerificaciones <fichero cache> revocar <clave publica>");
+            System.out.println("     java CacheVerificaciones <fichero cache> vaciar");
+            System.exit(1);
+        }
+
+        ContextoCripto.registrarProvider();
+        Path fichero = Paths.get(args[0]);
+
+        try (CacheVerificaciones cache = new CacheVerificaciones(0, fichero, CONJUNTOS)) {
+            if (args[1].equals("revocar")) {
+                PublicKey clave = AlmacenClaves.compartido().clavePublica(args[2]);
+                int borradas = cache.revocar(clave);
+                System.out.println(borradas + " verificaciones de la clave " + args[2] + " borradas de " + args[0]);
+            } else {
+                cache.vaciar();
+                System.out.println("Cache de verificaciones " + args[0] + " vaciada");
+            }
+        } catch (Exception e) {
+            System.err.println("Error al actualizar la cache de verificaciones");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Cache que usan SellarFactura, DesempaquetarFactura y VerificadorFirmas.
+     */
+    public static CacheVerificaciones compartida() {
+        return Compartida.INSTANCIA;
+    }
+
+    /**
+     * Identificador de una verificacion (clave, datos, firma).
+     */
+    static byte[] entrada(PublicKey clave, byte[] datos, byte[] firma) throws GeneralSecurityException {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        byte[] result = new byte[TAMANO_ENTRADA];
+        sha256.update(clave.getEncoded());
+        sha256.digest(result, 0, 32);
+        sha256.update(datos);
+        sha256.digest(result, 32, 32);
+        sha256.update(firma);
+        sha256.digest(result, 64, 32);
+        return result;
+    }
+
+    /**
+     * Resultado guardado de la verificacion, o null si no se conoce.
+     */
+    synchronized Boolean consultar(byte[] entrada) throws IOException {
+        if (this.canal != null) {
+            long actual = this.leer(POSICION_GENERACION, 8).getLong();
+            if (actual != this.generacion) {
+                this.memoria.clear();  // Se ha revocado una clave en otro proceso
+                this.generacion = actual;
+            }
+        }
+        Boolean result = this.memoria.get(ByteBuffer.wrap(entrada));
+        if ((result == null) && (this.canal != null)) {
+            ByteBuffer conjunto = this.leer(this.posicionConjunto(entrada), VIAS * TAMANO_RANURA);
+            int via = this.buscar(conjunto, entrada);
+            if ((via >= 0) && (conjunto.get(via * TAMANO_RANURA) != LIBRE)) {
+                result = conjunto.get(via * TAMANO_RANURA) == VALIDA;
+                this.memoria.put(ByteBuffer.wrap(entrada), result);
+            }
+        }
+        return result;
+    }
+
+    synchronized void guardar(byte[] entrada, boolean valida) throws IOException {
+        this.memoria.put(ByteBuffer.wrap(entrada), valida);
+        if (this.canal == null) {
+            return;
+        }
+        long posicion = this.posicionConjunto(entrada);
+        ByteBuffer conjunto = this.leer(posicion, VIAS * TAMANO_RANURA);
+        int via = this.buscar(conjunto, entrada);
+        if (via < 0) {
+            via = ThreadLocalRandom.current().nextInt(VIAS);
+        }
+        ByteBuffer ranura = ByteBuffer.allocate(TAMANO_RANURA);
+        ranura.put(valida ? VALIDA : NO_VALIDA).put(entrada);
+        ranura.put(this.calcularHmac(ranura.array(), 0), 0, TAMANO_HMAC).clear();
+        this.escribir(ranura, posicion + (long) via * TAMANO_RANURA);
+
+        // Si se ha revocado alguna clave mientras tanto, la ranura puede ser de una clave revocada
+        if (this.leer(POSICION_GENERACION, 8).getLong() != this.generacion) {
+            this.escribir(ByteBuffer.allocate(TAMANO_RANURA), posicion + (long) via * TAMANO_RANURA);
+        }
+    }
+
+    /**
+     * Borra los resultados de las firmas de esa clave; devuelve cuantos habia
+     * en el fichero (o en memoria, si no hay fichero).
+     */
+    public synchronized int revocar(PublicKey clave) throws IOException, GeneralSecurityException {
+        byte[] huella = MessageDigest.getInstance("SHA-256").digest(clave.getEncoded());
+        int borradas = 0;
+        for (Iterator<ByteBuffer> it = this.memoria.keySet().iterator(); it.hasNext(); ) {
+            if (Arrays.equals(it.next().array(), 0, huella.length, huella, 0, huella.length)) {
+                it.remove();
+                borradas++;
+            }
+        }
+        if (this.canal == null) {
+            return borradas;
+        }
+
+        borradas = 0;
+        FileLock bloqueo = this.canal.lock(0, TAMANO_CABECERA, false);
+        try {
+            this.generacion = this.leer(POSICION_GENERACION, 8).getLong() + 1;
+            this.escribir(ByteBuffer.allocate(8).putLong(0, this.generacion), POSICION_GENERACION);
+            int conjuntosPorBloque = 256;
+            for (int c = 0; c < this.numConjuntos; c += conjuntosPorBloque) {
+                int n = Math.min(conjuntosPorBloque, this.numConjuntos - c);
+                long posicion = TAMANO_CABECERA + (long) c * VIAS * TAMANO_RANURA;
+                ByteBuffer bloque = this.leer(posicion, n * VIAS * TAMANO_RANURA);
+                for (int i = 0; i < n * VIAS; i++) {
+                    int inicio = i * TAMANO_RANURA;
+                    if ((bloque.get(inicio) != LIBRE)
+                            && Arrays.equals(bloque.array(), inicio + 1, inicio + 1 + huella.length, huella, 0, huella.length)) {
+                        this.escribir(ByteBuffer.allocate(TAMANO_RANURA), posicion + inicio);
+                        borradas++;
+                    }
+                }
+            }
+        } finally {
+            bloqueo.release();
+        }
+        return borradas;
+    }
+
+    /**
+     * Borra todos los resultados (tambien los de otros procesos, que vaciaran
+     * su memoria al cambiar la generacion).
+     */
+    public synchronized void vaciar() throws IOException {
+        this.memoria.clear();
+        if (this.canal == null) {
+            return;
+        }
+        FileLock bloqueo = this.canal.lock(0, TAMANO_CABECERA, false);
+        try {
+            this.generacion = this.leer(POSICION_GENERACION, 8).getLong() + 1;
+            this.escribir(ByteBuffer.allocate(8).putLong(0, this.generacion), POSICION_GENERACION);
+            long tamano = TAMANO_CABECERA + (long) this.numConjuntos * VIAS * TAMANO_RANURA;
+            this.canal.truncate(TAMANO_CABECERA);
+            this.escribir(ByteBuffer.allocate(1), tamano - 1);
+        } finally {
+            bloqueo.release();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.canal != null) {
+            this.canal.close();
+        }
+    }
+
+    private static Map<ByteBuffer, Boolean> crearMemoria(int tamanoMaximo) {
+        return new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> masAntigua) {
+                return size() > tamanoMaximo;
+            }
+        };
+    }
+
+    static Path rutaClave(Path fichero) {
+        String ruta = System.getProperty("p1cifrado.verificaciones.clave");
+        return (ruta != null) ? Paths.get(ruta) : fichero.resolveSibling(fichero.getFileName() + ".clave");
+    }
+
+    /*
+     * Lee la clave del HMAC o, si no existe, la genera. Se escribe en un
+     * temporal (que en POSIX se crea solo legible por su dueño) y se enlaza
+     * con su nombre definitivo, de modo que si dos procesos la crean a la vez
+     * los dos acaban usando la misma.
+     */
+    private static Mac crearHmac(Path ficheroClave) throws IOException {
+        if (!Files.exists(ficheroClave)) {
+            byte[] nueva = new byte[TAMANO_CLAVE_HMAC];
+            new SecureRandom().nextBytes(nueva);
+            Path temporal = Files.createTempFile(ficheroClave.toAbsolutePath().getParent(),
+                    ficheroClave.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temporal, nueva);
+                Files.createLink(ficheroClave, temporal);
+            } catch (FileAlreadyExistsException e) {
+                // La ha creado otro proceso
+            } finally {
+                Files.delete(temporal);
+            }
+        }
+        byte[] clave = Files.readAllBytes(ficheroClave);
+        if (clave.length != TAMANO_CLAVE_HMAC) {
+            throw new IOException("Clave de la cache de verificaciones no valida: " + ficheroClave);
+        }
+        try {
+            Mac mac = Mac.getInstance(ALGORITMO_HMAC);
+            mac.init(new SecretKeySpec(clave, ALGORITMO_HMAC));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No se pudo iniciar el HMAC de la cache de verificaciones", e);
+        }
+    }
+
+    private byte[] calcularHmac(byte[] ranuras, int inicio) {
+        this.hmac.update(ranuras, inicio, 1 + TAMANO_ENTRADA);
+        return this.hmac.doFinal();
+    }
+
+    /*
+     * Crea el fichero vacio (disperso) en un temporal y lo renombra, para que
+     * otro proceso no lo abra sin cabecera.
+     */
+    private static void crearFichero(Path fichero, int conjuntos) throws IOException {
+        Path temporal = fichero.resolveSibling(fichero.getFileName() + ".tmp");
+        try (FileChannel nuevo = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+            cabecera.put(MAGIA).put(VERSION).putInt(8, conjuntos).putLong(POSICION_GENERACION, 0);
+            cabecera.clear();
+            while (cabecera.hasRemaining()) {
+                nuevo.write(cabecera);
+            }
+            nuevo.write(ByteBuffer.allocate(1), TAMANO_CABECERA + (long) conjuntos * VIAS * TAMANO_RANURA - 1);
+        }
+        Files.move(temporal, fichero, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long posicionConjunto(byte[] entrada) {
+        long mezcla = ByteBuffer.wrap(entrada).getLong(0) ^ ByteBuffer.wrap(entrada).getLong(32)
+                ^ ByteBuffer.wrap(entrada).getLong(64);
+        return TAMANO_CABECERA + Math.floorMod(mezcla, (long) this.numConjuntos) * VIAS * TAMANO_RANURA;
+    }
+
+    /*
+     * Via del conjunto con esa entrada o, si no esta, la primera libre; -1 si
+     * no esta y el conjunto esta lleno. Las ranuras con el HMAC mal (escritura
+     * interrumpida o manipulada) cuentan como libres.
+     */
+    private int buscar(ByteBuffer conjunto, byte[] entrada) {
+        int libre = -1;
+        byte[] ranuras = conjunto.array();
+        for (int via = 0; via < VIAS; via++) {
+            int inicio = via * TAMANO_RANURA;
+            boolean correcta = (conjunto.get(inicio) != LIBRE)
+                    && MessageDigest.isEqual(Arrays.copyOfRange(this.calcularHmac(ranuras, inicio), 0, TAMANO_HMAC),
+                            Arrays.copyOfRange(ranuras, inicio + 1 + TAMANO_ENTRADA, inicio + 1 + TAMANO_ENTRADA + TAMANO_HMAC));
+            if (!correcta) {
+                conjunto.put(inicio, LIBRE);
+                if (libre < 0) {
+                    libre = via;
+                }
+            } else if (Arrays.equals(conjunto.array(), inicio + 1, inicio + 1 + TAMANO_ENTRADA, entrada, 0, TAMANO_ENTRADA)) {
+                return via;
+            }
+        }
+        return libre;
+    }
+
+    private ByteBuffer leer(long posicion, int longitud) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(longitud);
+        while (buffer.hasRemaining()) {
+            if (this.canal.read(buffer, posicion + buffer.position()) < 0) {
+                throw new IOException("Fichero de cache de verificaciones truncado");
+            }
+        }
+        return buffer.clear();
+    }
+
+    private void escribir(ByteBuffer buffer, long posicion) throws IOException {
+        while (buffer.hasRemaining()) {
+            posicion += this.canal.write(buffer, posicion);
+        }
+    }
+
+    /*
+     * Se crea la primera vez que se usa; si no se puede abrir el fichero se
+     * sigue solo con el nivel en memoria.
+     */
+    private static class Compartida {
+
+        static final CacheVerificaciones INSTANCIA = crear();
+
+        private static CacheVerificaciones crear() {
+            int tamanoMemoria = Integer.getInteger("p1cifrado.verificaciones.memoria", TAMANO_MEMORIA);
+            String fichero = System.getProperty("p1cifrado.verificaciones.fichero");
+            if (fichero != null) {
+                try {
+                    return new CacheVerificaciones(tamanoMemoria, Paths.get(fichero),
+                            Integer.getInteger("p1cifrado.verificaciones.conjuntos", CONJUNTOS));
+                } catch (IOException e) {
+                    System.err.println("No se pudo abrir la cache de verificaciones " + fichero + ": " + e.getMessage());
+                }
+            }
+            return new CacheVerificaciones(tamanoMemoria);
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Cifrado AES-GCM por segmentos de tamaño fijo.
+ *
+ * Cada segmento se cifra de forma independiente con el nonce
+ * prefijo (8 bytes aleatorios) | numero de segmento (int), asi que los
+ * segmentos se reparten entre los nucleos en un ForkJoinPool. El texto
+ * cifrado se escribe en orden y sin las etiquetas, de modo que ocupa lo mismo
+ * que la factura y la posicion de cada segmento se calcula directamente; las
+ * etiquetas se guardan en la tabla de segmentos, que es lo que firma la
+ * empresa. La tabla incluye la longitud total y el numero de segmentos, por lo
+ * que no se pueden quitar ni reordenar segmentos sin invalidar la firma.
+ *
+ * Solo hay en vuelo un numero acotado de segmentos (VENTANA por nucleo), por
+ * lo que la memoria no depende del tamaño de la factura.
+ */
+final class CifradoSegmentado {
+
+    static final String TRANSFORMACION = "AES/GCM/NoPadding";
+    // SunJCE usa las instrucciones AES y de multiplicacion sin acarreo del procesador
+    static final String PROVIDER = "SunJCE";
+    static final int TAMANO_SEGMENTO = 1024 * 1024;
+    static final int TAMANO_ETIQUETA = 16;
+    // Maximo que se acepta al leer; la tabla llega sin verificar y de el
+    // depende el tamaño de los buffers de cada segmento
+    static final int TAMANO_MAXIMO_SEGMENTO = 64 * 1024 * 1024;
+    static final int TAMANO_PREFIJO = 8;
+    static final int VENTANA = 2;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private CifradoSegmentado() {
+    }
+
+    /**
+     * Cifra la entrada y escribe en la salida los segmentos cifrados en orden.
+     * Devuelve la tabla de segmentos con las etiquetas.
+     */
+    static TablaSegmentos cifrar(SecretKey clave, InputStream in, OutputStream out) throws Exception {
+        byte[] prefijo = new byte[TAMANO_PREFIJO];
+        RANDOM.nextBytes(prefijo);
+        ByteArrayOutputStream etiquetas = new ByteArrayOutputStream();
+        long longitud = 0;
+        int segmentos = 0;
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        Deque<ForkJoinTask<byte[]>> pendientes = new ArrayDeque<>();
+        try {
+            byte[] segmento = leerSegmento(in);
+            // Siempre hay al menos un segmento (vacio si la factura lo esta)
+            do {
+                int numero = segmentos++;
+                byte[] claro = segmento;
+                longitud += claro.length;
+                pendientes.add(pool.submit(() -> procesarSegmento(Cipher.ENCRYPT_MODE, clave, prefijo, numero, claro)));
+                if (pendientes.size() >= VENTANA * pool.getParallelism()) {
+                    escribirCifrado(pendientes.poll(), out, etiquetas);
+                }
+                segmento = leerSegmento(in);
+            } while (segmento.length > 0);
+            while (!pendientes.isEmpty()) {
+                escribirCifrado(pendientes.poll(), out, etiquetas);
+            }
+        } finally {
+            pendientes.forEach(tarea -> tarea.cancel(false));
+        }
+        return new TablaSegmentos(TAMANO_SEGMENTO, longitud, segmentos, prefijo, etiquetas.toByteArray());
+    }
+
+    /**
+     * Descifra los segmentos leidos de la entrada comprobando la etiqueta de
+     * cada uno y escribe la factura en orden. Un segmento manipulado produce
+     * PaqueteInvalidoException.
+     */
+    static void descifrar(SecretKey clave, TablaSegmentos tabla, InputStream in, OutputStream out) throws Exception {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        Deque<ForkJoinTask<byte[]>> pendientes = new ArrayDeque<>();
+        try {
+            for (int numero = 0; numero < tabla.getNumeroSegmentos(); numero++) {
+                int tamano = tabla.getTamanoSegmento(numero);
+                byte[] cifrado = new byte[tamano + TAMANO_ETIQUETA];
+                long inicio = Metricas.inicio();
+                int leidos = in.readNBytes(cifrado, 0, tamano);
+                Metricas.fin(Metricas.Etapa.LECTURA, inicio, leidos);
+                if (leidos != tamano) {
+                    Metricas.fallo(Metricas.Fallo.CONTENIDO_ALTERADO);
+                    throw new PaqueteInvalidoException("Factura cifrada truncada en el segmento " + numero);
+                }
+                tabla.copiarEtiqueta(numero, cifrado, tamano);
+                int n = numero;
+                pendientes.add(pool.submit(() -> procesarSegmento(Cipher.DECRYPT_MODE, clave, tabla.getPrefijo(), n, cifrado)));
+                if (pendientes.size() >= VENTANA * pool.getParallelism()) {
+                    escribirDescifrado(pendientes.poll(), out);
+                }
+            }
+            while (!pendientes.isEmpty()) {
+                escribirDescifrado(pendientes.poll(), out);
+            }
+            if (in.read() >= 0) {
+                Metricas.fallo(Metricas.Fallo.CONTENIDO_ALTERADO);
+                throw new PaqueteInvalidoException("La factura cifrada no coincide con la tabla de segmentos");
+            }
+        } finally {
+            pendientes.forEach(tarea -> tarea.cancel(false));
+        }
+    }
+
+    /*
+     * Cifra o descifra un segmento completo. En modo descifrado la etiqueta va
+     * al final del array, como la espera Cipher. Se pasa a Cipher en trozos de
+     * TAMANO_BUFFER sobre un array de salida ya reservado: asi el JIT compila
+     * antes el bucle con las instrucciones AES/CLMUL que con doFinal de un
+     * segmento entero.
+     */
+    static byte[] procesarSegmento(int modo, SecretKey clave, byte[] prefijo, int numero, byte[] datos)
+            throws GeneralSecurityException {
+        long inicio = Metricas.inicio();
+        GCMParameterSpec parametros = new GCMParameterSpec(TAMANO_ETIQUETA * 8, nonce(prefijo, numero));
+        Cipher cipher = ContextoCripto.cifrador(TRANSFORMACION, PROVIDER, modo, clave, parametros);
+        byte[] resultado = new byte[cipher.getOutputSize(datos.length)];
+        int escritos = 0;
+        int posicion = 0;
+        while (datos.length - posicion > EmpaquetarFactura.TAMANO_BUFFER) {
+            escritos += cipher.update(datos, posicion, EmpaquetarFactura.TAMANO_BUFFER, resultado, escritos);
+            posicion += EmpaquetarFactura.TAMANO_BUFFER;
+        }
+        escritos += cipher.doFinal(datos, posicion, datos.length - posicion, resultado, escritos);
+        Metricas.fin(Metricas.Etapa.AES, inicio, datos.length);
+        return (escritos == resultado.length) ? resultado : Arrays.copyOf(resultado, escritos);
+    }
+
+    static byte[] nonce(byte[] prefijo, int numero) {
+        return ByteBuffer.allocate(TAMANO_PREFIJO + Integer.BYTES).put(prefijo).putInt(numero).array();
+    }
+
+    private static byte[] leerSegmento(InputStream in) throws IOException {
+        long inicio = Metricas.inicio();
+        byte[] segmento = in.readNBytes(TAMANO_SEGMENTO);
+        Metricas.fin(Metricas.Etapa.LECTURA, inicio, segmento.length);
+        return segmento;
+    }
+
+    private static void escribirCifrado(ForkJoinTask<byte[]> tarea, OutputStream out, OutputStream etiquetas)
+            throws Exception {
+        byte[] cifrado = resultado(tarea);
+        int tamano = cifrado.length - TAMANO_ETIQUETA;
+        long inicio = Metricas.inicio();
+        out.write(cifrado, 0, tamano);
+        Metricas.fin(Metricas.Etapa.ESCRITURA, inicio, tamano);
+        etiquetas.write(cifrado, tamano, TAMANO_ETIQUETA);
+    }
+
+    private static void escribirDescifrado(ForkJoinTask<byte[]> tarea, OutputStream out) throws Exception {
+        try {
+            byte[] descifrado = resultado(tarea);
+            long inicio = Metricas.inicio();
+            out.write(descifrado);
+            Metricas.fin(Metricas.Etapa.ESCRITURA, inicio, descifrado.length);
+        } catch (AEADBadTagException e) {
+            Metricas.fallo(Metricas.Fallo.CONTENIDO_ALTERADO);
+            throw new PaqueteInvalidoException("Segmento de la factura cifrada no valido", e);
+        }
+    }
+
+    private static byte[] resultado(ForkJoinTask<byte[]> tarea) throws Exception {
+        try {
+            return tarea.get();
+        } catch (ExecutionException e) {
+            // ForkJoinTask envuelve las excepciones comprobadas de la tarea en RuntimeException
+            Throwable causa = e.getCause();
+            while ((causa instanceof RuntimeException) && (causa.getCause() instanceof Exception)) {
+                causa = causa.getCause();
+            }
+            if (causa instanceof Exception) {
+                throw (Exception) causa;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Canal de solo lectura sobre la factura descifrada de un paquete
+     * segmentado. Como los segmentos cifrados ocupan lo mismo que los claros,
+     * el segmento n empieza en n * tamaño de segmento del bloque
+     * facturaCifrada; al leer se descifra solo el segmento que contiene la
+     * posicion (comprobando su etiqueta) y se guarda el ultimo descifrado.
+     * Al cerrarlo se cierra el paquete.
+     */
+    static class CanalDescifrado implements SeekableByteChannel {
+
+        private final PaqueteMapeado paquete;
+        private final SecretKey clave;
+        private final TablaSegmentos tabla;
+        private long posicion;
+        private int numeroDescifrado = -1;
+        private byte[] descifrado;
+        private boolean abierto = true;
+
+        CanalDescifrado(PaqueteMapeado paquete, SecretKey clave, TablaSegmentos tabla) {
+            this.paquete = paquete;
+            this.clave = clave;
+            this.tabla = tabla;
+        }
+
+        @Override
+        public int read(ByteBuffer destino) throws IOException {
+            this.comprobarAbierto();
+            if (this.posicion >= this.tabla.getLongitud()) {
+                return -1;
+            }
+            int copiados = 0;
+            while (destino.hasRemaining() && (this.posicion < this.tabla.getLongitud())) {
+                int numero = (int) (this.posicion / this.tabla.getTamanoSegmento());
+                if (numero != this.numeroDescifrado) {
+                    this.descifrado = this.descifrarSegmento(numero);
+                    this.numeroDescifrado = numero;
+                }
+                int desde = (int) (this.posicion - (long) numero * this.tabla.getTamanoSegmento());
+                int n = Math.min(destino.remaining(), this.descifrado.length - desde);
+                destino.put(this.descifrado, desde, n);
+                this.posicion += n;
+                copiados += n;
+            }
+            return copiados;
+        }
+
+        private byte[] descifrarSegmento(int numero) throws IOException {
+            int tamano = this.tabla.getTamanoSegmento(numero);
+            byte[] cifrado = new byte[tamano + TAMANO_ETIQUETA];
+            long inicio = Metricas.inicio();
+            try (InputStream in = this.paquete.abrirBloque("facturaCifrada", (long) numero * this.tabla.getTamanoSegmento())) {
+                if (in.readNBytes(cifrado, 0, tamano) != tamano) {
+                    Metricas.fallo(Metricas.Fallo.CONTENIDO_ALTERADO);
+                    throw new PaqueteInvalidoException("Factura cifrada truncada en el segmento " + numero);
+                }
+            } catch (EOFException e) {
+                Metricas.fallo(Metricas.Fallo.CONTENIDO_ALTERADO);
+                throw new PaqueteInvalidoException("Factura cifrada truncada en el segmento " + numero, e);
+            }
+            Metricas.fin(Metricas.Etapa.LECTURA, inicio, tamano);
+            this.tabla.copiarEtiqueta(numero, cifrado, tamano);
+            try {
+                return procesarSegmento(Cipher.DECRYPT_MODE, this.clave, this.tabla.getPrefijo(), numero, cifrado);
+            } catch (AEADBadTagException e) {
+                Metricas.fallo(Metricas.Fallo.CONTENIDO_ALTERADO);
+                throw new PaqueteInvalidoException("Segmento de la factura cifrada no valido", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error al descifrar el segmento " + numero, e);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer origen) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            this.comprobarAbierto();
+            return this.posicion;
+        }
+
+        @Override
+        public SeekableByteChannel position(long nuevaPosicion) throws IOException {
+            this.comprobarAbierto();
+            if (nuevaPosicion < 0) {
+                throw new IllegalArgumentException("Posicion negativa: " + nuevaPosicion);
+            }
+            this.posicion = nuevaPosicion;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            this.comprobarAbierto();
+            return this.tabla.getLongitud();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long tamano) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.abierto;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.abierto) {
+                this.abierto = false;
+                this.descifrado = null;
+                this.paquete.close();
+            }
+        }
+
+        private void comprobarAbierto() throws ClosedChannelException {
+            if (!this.abierto) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    /**
+     * Contenido del bloque tablaSegmentos:
+     * <pre>
+     *   tamaño de segmento (int) | longitud de la factura (long) | num. segmentos (int) |
+     *   prefijo del nonce (8 bytes) | etiqueta GCM de cada segmento (16 bytes)
+     * </pre>
+     */
+    static class TablaSegmentos {
+
+        private final int tamanoSegmento;
+        private final long longitud;
+        private final int numeroSegmentos;
+        private final byte[] prefijo;
+        private final byte[] etiquetas;
+
+        TablaSegmentos(int tamanoSegmento, long longitud, int numeroSegmentos, byte[] prefijo, byte[] etiquetas) {
+            this.tamanoSegmento = tamanoSegmento;
+            this.longitud = longitud;
+            this.numeroSegmentos = numeroSegmentos;
+            this.prefijo = prefijo;
+            this.etiquetas = etiquetas;
+        }
+
+        static TablaSegmentos decodificar(byte[] contenido) throws PaqueteInvalidoException {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(contenido));
+                int tamanoSegmento = in.readInt();
+                long longitud = in.readLong();
+                int numeroSegmentos = in.readInt();
+                if ((tamanoSegmento <= 0) || (tamanoSegmento > TAMANO_MAXIMO_SEGMENTO) || (longitud < 0)
+                        || (numeroSegmentos <= 0)
+                        || (numeroSegmentos != Math.max(1, (longitud + tamanoSegmento - 1) / tamanoSegmento))) {
+                    throw new PaqueteInvalidoException("Tabla de segmentos no valida");
+                }
+                byte[] prefijo = in.readNBytes(TAMANO_PREFIJO);
+                byte[] etiquetas = in.readAllBytes();
+                if ((prefijo.length != TAMANO_PREFIJO) || (etiquetas.length != (long) numeroSegmentos * TAMANO_ETIQUETA)) {
+                    throw new PaqueteInvalidoException("Tabla de segmentos no valida");
+                }
+                return new TablaSegmentos(tamanoSegmento, longitud, numeroSegmentos, prefijo, etiquetas);
+            } catch (IOException e) {
+                Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+                throw new PaqueteInvalidoException("Tabla de segmentos no valida", e);
+            }
+        }
+
+        byte[] codificar() {
+            ByteArrayOutputStream contenido = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(contenido)) {
+                out.writeInt(this.tamanoSegmento);
+                out.writeLong(this.longitud);
+                out.writeInt(this.numeroSegmentos);
+                out.write(this.prefijo);
+                out.write(this.etiquetas);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return contenido.toByteArray();
+        }
+
+        int getTamanoSegmento() {
+            return this.tamanoSegmento;
+        }
+
+        int getTamanoSegmento(int numero) {
+            return (int) Math.min(this.tamanoSegmento, this.longitud - (long) numero * this.tamanoSegmento);
+        }
+
+        long getLongitud() {
+            return this.longitud;
+        }
+
+        int getNumeroSegmentos() {
+            return this.numeroSegmentos;
+        }
+
+        byte[] getPrefijo() {
+            return this.prefijo;
+        }
+
+        void copiarEtiqueta(int numero, byte[] destino, int posicion) {
+            System.arraycopy(this.etiquetas, numero * TAMANO_ETIQUETA, destino, posicion, TAMANO_ETIQUETA);
+        }
+    }
+}
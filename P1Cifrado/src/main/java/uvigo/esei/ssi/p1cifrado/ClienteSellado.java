@@ -0,0 +1,94 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cliente de ServicioSellado por la interfaz de loopback. Una conexion admite
+ * varias solicitudes seguidas; no es thread-safe.
+ */
+public class ClienteSellado implements Closeable {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public ClienteSellado(int puerto) throws IOException {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), puerto);
+        this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Uso: java ClienteSellado <puerto> <nombre paquete>...");
+            System.exit(1);
+        }
+
+        int puerto = Integer.parseInt(args[0]);
+        AtomicInteger errores = new AtomicInteger();
+        long inicio = System.nanoTime();
+
+        // Una conexion por paquete para que las solicitudes entren en el mismo lote
+        List<Thread> hilos = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            Path paquete = Paths.get(args[i]);
+            hilos.add(Thread.ofVirtual().start(() -> {
+                try (ClienteSellado cliente = new ClienteSellado(puerto)) {
+                    byte[] selloTiempo = cliente.sellar(paquete);
+                    System.out.println(paquete + ": sellado (" + new String(selloTiempo) + ")");
+                } catch (PaqueteInvalidoException e) {
+                    errores.incrementAndGet();
+                    System.out.println(paquete + ": " + e.getMessage());
+                } catch (Exception e) {
+                    errores.incrementAndGet();
+                    System.err.println("Error al sellar " + paquete + ": " + e);
+                }
+            }));
+        }
+        try {
+            for (Thread hilo : hilos) {
+                hilo.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        System.out.printf("%d paquetes sellados, %d con error en %.2f s (%.1f paquetes/s)%n",
+                hilos.size() - errores.get(), errores.get(), segundos, hilos.size() / segundos);
+        if (errores.get() > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Sella el paquete en el propio fichero y devuelve el sello de tiempo.
+     */
+    public byte[] sellar(Path paquete) throws IOException {
+        this.out.writeUTF(paquete.toAbsolutePath().toString());
+        this.out.flush();
+        boolean correcto = this.in.readBoolean();
+        String respuesta = this.in.readUTF();
+        if (!correcto) {
+            throw new PaqueteInvalidoException(respuesta);
+        }
+        return respuesta.getBytes();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+}
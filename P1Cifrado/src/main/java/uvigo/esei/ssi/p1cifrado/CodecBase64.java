@@ -0,0 +1,230 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Codificacion BASE64 del contenido de los bloques en formato texto,
+ * directamente entre ByteBuffers y sin crear objetos por linea.
+ *
+ * El Codificador parte la salida en lineas de ANCHO_LINEA caracteres a medida
+ * que escribe; el Decodificador ignora los saltos de linea ('\n' y "\r\n").
+ * Ambos guardan entre llamadas el grupo de bytes o caracteres que queda a
+ * medias, de modo que el contenido se puede procesar en trozos de cualquier
+ * tamaño.
+ */
+final class CodecBase64 {
+
+    private static final byte[] ALFABETO =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final int[] VALORES = new int[256];
+    private static final byte RELLENO = '=';
+
+    static {
+        Arrays.fill(VALORES, -1);
+        for (int i = 0; i < ALFABETO.length; i++) {
+            VALORES[ALFABETO[i]] = i;
+        }
+    }
+
+    private CodecBase64() {
+    }
+
+    static final class Codificador {
+
+        // Un grupo de 3 bytes da 4 caracteres y como mucho un salto de linea
+        private static final int MAXIMO_GRUPO = 5;
+
+        private final int anchoLinea;
+        private int columna;
+        private int grupo;
+        private int numGrupo;
+
+        Codificador(int anchoLinea) {
+            this.anchoLinea = anchoLinea;
+        }
+
+        /**
+         * Codifica el origen en el destino mientras haya sitio. Devuelve true
+         * si se ha consumido todo el origen (los bytes que no completan un
+         * grupo quedan guardados) o false si hay que vaciar el destino y volver
+         * a llamar.
+         */
+        boolean codificar(ByteBuffer origen, ByteBuffer destino) {
+            while (true) {
+                if (this.numGrupo == 3) {
+                    if (destino.remaining() < MAXIMO_GRUPO) {
+                        return false;
+                    }
+                    this.escribirGrupo(destino, this.grupo, 4);
+                    this.grupo = 0;
+                    this.numGrupo = 0;
+                }
+                while ((this.numGrupo == 0) && (origen.remaining() >= 3) && (destino.remaining() >= MAXIMO_GRUPO)) {
+                    int bytes = ((origen.get() & 0xFF) << 16) | ((origen.get() & 0xFF) << 8) | (origen.get() & 0xFF);
+                    this.escribirGrupo(destino, bytes, 4);
+                }
+                if (!origen.hasRemaining()) {
+                    return true;
+                }
+                if ((this.numGrupo == 0) && (origen.remaining() >= 3)) {
+                    return false;  // Destino lleno
+                }
+                this.grupo = (this.grupo << 8) | (origen.get() & 0xFF);
+                this.numGrupo++;
+            }
+        }
+
+        /**
+         * Escribe el ultimo grupo con relleno. Devuelve false (sin escribir
+         * nada) si no cabe en el destino. No termina la ultima linea.
+         */
+        boolean terminar(ByteBuffer destino) {
+            if (this.numGrupo == 0) {
+                return true;
+            }
+            if (destino.remaining() < MAXIMO_GRUPO) {
+                return false;
+            }
+            if (this.numGrupo == 3) {
+                this.escribirGrupo(destino, this.grupo, 4);
+            } else {
+                int bytes = this.grupo << (8 * (3 - this.numGrupo));
+                this.escribirGrupo(destino, bytes, this.numGrupo + 1);
+                for (int i = this.numGrupo; i < 3; i++) {
+                    this.escribir(destino, RELLENO);
+                }
+            }
+            this.grupo = 0;
+            this.numGrupo = 0;
+            return true;
+        }
+
+        private void escribirGrupo(ByteBuffer destino, int bytes, int caracteres) {
+            for (int i = 0; i < caracteres; i++) {
+                this.escribir(destino, ALFABETO[(bytes >>> (18 - 6 * i)) & 0x3F]);
+            }
+        }
+
+        private void escribir(ByteBuffer destino, byte caracter) {
+            destino.put(caracter);
+            if (++this.columna == this.anchoLinea) {
+                destino.put((byte) '\n');
+                this.columna = 0;
+            }
+        }
+    }
+
+    static final class Decodificador {
+
+        private int grupo;
+        private int numGrupo;
+        private int relleno;
+        private boolean terminado;
+        // Bytes ya decodificados que no cabian en el destino
+        private int pendiente;
+        private int numPendiente;
+
+        /**
+         * Decodifica el origen en el destino hasta agotar uno de los dos,
+         * saltando los saltos de linea.
+         */
+        void decodificar(ByteBuffer origen, ByteBuffer destino) throws PaqueteInvalidoException {
+            this.vaciar(destino);
+            while ((this.numPendiente == 0) && origen.hasRemaining() && destino.hasRemaining()) {
+                while ((this.numGrupo == 0) && (origen.remaining() >= 4) && (destino.remaining() >= 3)) {
+                    int inicio = origen.position();
+                    int bytes = (VALORES[origen.get() & 0xFF] << 18) | (VALORES[origen.get() & 0xFF] << 12)
+                            | (VALORES[origen.get() & 0xFF] << 6) | VALORES[origen.get() & 0xFF];
+                    if ((bytes < 0) || this.terminado) {
+                        // Salto de linea, relleno o caracter no valido: se trata caracter a caracter
+                        origen.position(inicio);
+                        break;
+                    }
+                    destino.put((byte) (bytes >> 16)).put((byte) (bytes >> 8)).put((byte) bytes);
+                }
+                if (!origen.hasRemaining() || !destino.hasRemaining()) {
+                    break;
+                }
+                this.decodificarCaracter(origen.get() & 0xFF, destino);
+            }
+        }
+
+        /**
+         * Fin del contenido: decodifica el ultimo grupo si no llevaba relleno.
+         */
+        void terminar(ByteBuffer destino) throws PaqueteInvalidoException {
+            if ((this.relleno > 0) || (this.numGrupo == 1)) {
+                Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+                throw new PaqueteInvalidoException("Contenido BASE64 truncado");
+            }
+            if (this.numGrupo > 1) {
+                this.emitirIncompleto(destino);
+            }
+            this.terminado = true;
+        }
+
+        /**
+         * Copia al destino los bytes decodificados que no cupieron antes.
+         */
+        void vaciar(ByteBuffer destino) {
+            while ((this.numPendiente > 0) && destino.hasRemaining()) {
+                this.numPendiente--;
+                destino.put((byte) (this.pendiente >> (8 * this.numPendiente)));
+            }
+        }
+
+        private void decodificarCaracter(int caracter, ByteBuffer destino) throws PaqueteInvalidoException {
+            if ((caracter == '\n') || (caracter == '\r')) {
+                return;
+            }
+            if (caracter == RELLENO) {
+                if (this.terminado || (this.numGrupo < 2) || (this.numGrupo + this.relleno >= 4)) {
+                    Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+                    throw new PaqueteInvalidoException("Relleno BASE64 mal colocado");
+                }
+                this.relleno++;
+                if (this.numGrupo + this.relleno == 4) {
+                    this.emitirIncompleto(destino);
+                    this.relleno = 0;
+                    this.terminado = true;
+                }
+                return;
+            }
+            int valor = VALORES[caracter];
+            if (valor < 0) {
+                Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+                throw new PaqueteInvalidoException("Caracter BASE64 no valido: " + caracter);
+            }
+            if (this.terminado || (this.relleno > 0)) {
+                Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+                throw new PaqueteInvalidoException("Contenido BASE64 despues del relleno");
+            }
+            this.grupo = (this.grupo << 6) | valor;
+            if (++this.numGrupo == 4) {
+                this.emitir(destino, this.grupo, 3);
+                this.grupo = 0;
+                this.numGrupo = 0;
+            }
+        }
+
+        private void emitirIncompleto(ByteBuffer destino) {
+            // 2 caracteres = 12 bits -> 1 byte; 3 caracteres = 18 bits -> 2 bytes
+            int bytes = this.numGrupo - 1;
+            this.emitir(destino, this.grupo >> (6 * this.numGrupo - 8 * bytes), bytes);
+            this.grupo = 0;
+            this.numGrupo = 0;
+        }
+
+        private void emitir(ByteBuffer destino, int bytes, int numBytes) {
+            int n = numBytes;
+            while ((n > 0) && destino.hasRemaining()) {
+                n--;
+                destino.put((byte) (bytes >> (8 * n)));
+            }
+            this.pendiente = bytes;
+            this.numPendiente = n;
+        }
+    }
+}
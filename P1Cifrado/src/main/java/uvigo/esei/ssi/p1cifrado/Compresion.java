@@ -0,0 +1,136 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Compresion de la factura antes de cifrarla.
+ *
+ * El texto cifrado no se puede comprimir, asi que la factura se comprime al
+ * leerla y se descomprime al escribir el resultado descifrado, sin pasos
+ * intermedios en disco. La compresion usada se guarda en el bloque compresion;
+ * si no existe (paquetes anteriores) la factura no esta comprimida.
+ */
+public enum Compresion {
+
+    NINGUNA, DEFLATE;
+
+    public static final String BLOQUE = "compresion";
+
+    public static Compresion deNombre(String nombre) {
+        return Compresion.valueOf(nombre.trim().toUpperCase());
+    }
+
+    /**
+     * Contenido del bloque compresion (el nombre de la compresion en ASCII).
+     */
+    public byte[] bloque() {
+        return this.name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static Compresion leerBloque(byte[] contenido) throws PaqueteInvalidoException {
+        if (contenido == null) {
+            return NINGUNA;
+        }
+        String nombre = new String(contenido, StandardCharsets.US_ASCII);
+        try {
+            return Compresion.valueOf(nombre);
+        } catch (IllegalArgumentException e) {
+            Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+            throw new PaqueteInvalidoException("Compresion no soportada: " + nombre);
+        }
+    }
+
+    /**
+     * Devuelve un stream que entrega el contenido de la entrada comprimido.
+     */
+    public InputStream comprimir(InputStream entrada) {
+        if (this == NINGUNA) {
+            return entrada;
+        }
+        return new EntradaComprimida(entrada);
+    }
+
+    /**
+     * Devuelve un stream que escribe en la salida lo que recibe descomprimido.
+     * Al cerrarlo se comprueba que el contenido comprimido estaba completo.
+     */
+    public OutputStream descomprimir(OutputStream salida) {
+        if (this == NINGUNA) {
+            return salida;
+        }
+        return new SalidaDescomprimida(salida);
+    }
+
+    /*
+     * Los constructores por defecto usan buffers de 512 bytes; el Deflater e
+     * Inflater propios hay que liberarlos al cerrar.
+     */
+    private static class EntradaComprimida extends DeflaterInputStream {
+
+        EntradaComprimida(InputStream entrada) {
+            super(entrada, new Deflater(Deflater.DEFAULT_COMPRESSION), EmpaquetarFactura.TAMANO_BUFFER);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long inicio = Metricas.inicio();
+            int leidos = super.read(b, off, len);
+            Metricas.fin(Metricas.Etapa.COMPRESION, inicio, leidos);
+            return leidos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                this.def.end();
+            }
+        }
+    }
+
+    private static class SalidaDescomprimida extends InflaterOutputStream {
+
+        private boolean cerrada;
+
+        SalidaDescomprimida(OutputStream salida) {
+            super(salida, new Inflater(), EmpaquetarFactura.TAMANO_BUFFER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                long inicio = Metricas.inicio();
+                super.write(b, off, len);
+                Metricas.fin(Metricas.Etapa.COMPRESION, inicio, len);
+            } catch (ZipException e) {
+                Metricas.fallo(Metricas.Fallo.CONTENIDO_ALTERADO);
+                throw new PaqueteInvalidoException("Factura comprimida no valida", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.cerrada) {
+                this.cerrada = true;
+                try {
+                    super.close();
+                    if (!this.inf.finished()) {
+                        Metricas.fallo(Metricas.Fallo.CONTENIDO_ALTERADO);
+                        throw new PaqueteInvalidoException("Factura comprimida incompleta");
+                    }
+                } finally {
+                    this.inf.end();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Cache por hilo de los objetos criptograficos (Cipher, Signature,
+ * KeyFactory, KeyGenerator, KeyPairGenerator) indexados por algoritmo y provider.
+ *
+ * Crear estos objetos con getInstance() implica buscar el provider y
+ * construir la implementacion en cada llamada; aqui se crean una vez por hilo
+ * y en cada uso solo se vuelven a inicializar con la clave correspondiente.
+ * Al ser por hilo no necesitan sincronizacion y se pueden compartir entre
+ * empaquetado, sellado y desempaquetado dentro del mismo proceso.
+ */
+public final class ContextoCripto {
+
+    static {
+        registrarProvider();
+    }
+
+    private static final ThreadLocal<Map<String, Object>> CACHE = ThreadLocal.withInitial(HashMap::new);
+
+    private ContextoCripto() {
+    }
+
+    /**
+     * Registra el provider BC si no lo estaba ya.
+     */
+    public static void registrarProvider() {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    public static Cipher cifrador(String transformacion, String provider, int modo, Key clave)
+            throws GeneralSecurityException {
+        Cipher cipher = cipher(transformacion, provider);
+        cipher.init(modo, clave);
+        return cipher;
+    }
+
+    public static Cipher cifrador(String transformacion, String provider, int modo, Key clave,
+                                  AlgorithmParameterSpec parametros) throws GeneralSecurityException {
+        Cipher cipher = cipher(transformacion, provider);
+        cipher.init(modo, clave, parametros);
+        return cipher;
+    }
+
+    public static Signature firmador(String algoritmo, String provider, PrivateKey clave)
+            throws GeneralSecurityException {
+        Signature firma = firma(algoritmo, provider);
+        firma.initSign(clave);
+        return firma;
+    }
+
+    public static Signature verificador(String algoritmo, String provider, PublicKey clave)
+            throws GeneralSecurityException {
+        Signature firma = firma(algoritmo, provider);
+        firma.initVerify(clave);
+        return firma;
+    }
+
+    public static KeyFactory factoriaClaves(String algoritmo, String provider) throws GeneralSecurityException {
+        KeyFactory factoria = (KeyFactory) CACHE.get().get("KeyFactory/" + algoritmo + "/" + provider);
+        if (factoria == null) {
+            factoria = KeyFactory.getInstance(algoritmo, provider);
+            CACHE.get().put("KeyFactory/" + algoritmo + "/" + provider, factoria);
+        }
+        return factoria;
+    }
+
+    public static KeyGenerator generadorClaves(String algoritmo, String provider, int tamano)
+            throws GeneralSecurityException {
+        String nombre = "KeyGenerator/" + algoritmo + "/" + provider + "/" + tamano;
+        KeyGenerator generador = (KeyGenerator) CACHE.get().get(nombre);
+        if (generador == null) {
+            generador = KeyGenerator.getInstance(algoritmo, provider);
+            generador.init(tamano);
+            CACHE.get().put(nombre, generador);
+        }
+        return generador;
+    }
+
+    /**
+     * Generador de pares de claves ya inicializado para el tipo indicado.
+     */
+    public static KeyPairGenerator generadorParesClaves(TipoClave tipo) throws GeneralSecurityException {
+        String nombre = "KeyPairGenerator/" + tipo;
+        KeyPairGenerator generador = (KeyPairGenerator) CACHE.get().get(nombre);
+        if (generador == null) {
+            generador = KeyPairGenerator.getInstance(tipo.getAlgoritmo(), tipo.getProvider());
+            generador.initialize(tipo.getParametros());
+            CACHE.get().put(nombre, generador);
+        }
+        return generador;
+    }
+
+    private static Cipher cipher(String transformacion, String provider) throws GeneralSecurityException {
+        Cipher cipher = (Cipher) CACHE.get().get("Cipher/" + transformacion + "/" + provider);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformacion, provider);
+            CACHE.get().put("Cipher/" + transformacion + "/" + provider, cipher);
+        }
+        return cipher;
+    }
+
+    private static Signature firma(String algoritmo, String provider) throws GeneralSecurityException {
+        Signature firma = (Signature) CACHE.get().get("Signature/" + algoritmo + "/" + provider);
+        if (firma == null) {
+            firma = Signature.getInstance(algoritmo, provider);
+            CACHE.get().put("Signature/" + algoritmo + "/" + provider, firma);
+        }
+        return firma;
+    }
+}
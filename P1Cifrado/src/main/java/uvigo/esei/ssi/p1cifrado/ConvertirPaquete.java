@@ -0,0 +1,42 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Convierte un paquete entre el formato texto (BASE64) y el binario, bloque a
+ * bloque y sin cargar los bloques en memoria.
+ */
+public class ConvertirPaquete {
+
+    public static void main(String[] args) {
+        if (args.length != 3) {
+            System.out.println("Uso: java ConvertirPaquete <paquete origen> <paquete destino> <texto|binario>");
+            System.exit(1);
+        }
+
+        try {
+            convertir(Paths.get(args[0]), Paths.get(args[1]), FormatoPaquete.deNombre(args[2]));
+            System.out.println("Paquete convertido a formato " + args[2] + " en " + args[1]);
+        } catch (Exception e) {
+            System.err.println("Error al convertir el paquete");
+            e.printStackTrace();
+        }
+    }
+
+    public static void convertir(Path origen, Path destino, FormatoPaquete formato) throws Exception {
+        try (LectorPaquete lector = LectorPaquete.abrir(Files.newInputStream(origen));
+             EscritorPaquete escritor = EscritorPaquete.crear(Files.newOutputStream(destino), formato)) {
+            String nombreBloque = lector.siguienteBloque();
+            while (nombreBloque != null) {
+                try (InputStream in = lector.contenidoBloque(); OutputStream out = escritor.abrirBloque(nombreBloque)) {
+                    in.transferTo(out);
+                }
+                nombreBloque = lector.siguienteBloque();
+            }
+        }
+    }
+}
@@ -1,91 +1,218 @@
 package uvigo.esei.ssi.p1cifrado;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.*;
-import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
 import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import javax.crypto.SecretKey;
 
 public class DesempaquetarFactura {
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 4) {
-            System.out.println("Uso: DesempaquetarFactura <nombre paquete> <fichero JSON factura> <clave privada Hacienda> <clave pública autoridad>");
+        long desde = 0;
+        long longitud = -1;
+        if (args.length == 6) {
+            try {
+                desde = Long.parseLong(args[4]);
+                longitud = Long.parseLong(args[5]);
+            } catch (NumberFormatException e) {
+                desde = -1;
+            }
+        }
+        if (((args.length != 4) && (args.length != 6)) || (desde < 0) || ((args.length == 6) && (longitud < 0))) {
+            System.out.println("Uso: DesempaquetarFactura <nombre paquete> <fichero JSON factura> <clave privada Hacienda> <clave pública autoridad> [<desde> <longitud>]");
+            System.out.println("\tCon desde y longitud solo se extrae ese rango de bytes de la factura (paquetes segmentados sin compresion)");
             return;
         }
 
-        Security.addProvider(new BouncyCastleProvider());
-        
+        ContextoCripto.registrarProvider();
+
         String paquetePath = args[0];
         String facturaJsonPath = args[1];
         String clavePrivadaHaciendaPath = args[2];
         String clavePublicaAutoridadPath = args[3];
 
-        // Leer el paquete
-        Paquete paquete = new Paquete();
-        paquete.leerPaquete(paquetePath);
-
-        // Verificar que los bloques necesarios existen
-        byte[] facturaCifrada = paquete.getContenidoBloque("facturaCifrada");
-        byte[] firmaAutoridad = paquete.getContenidoBloque("firmaAutoridad");
-        byte[] claveSimetricaCifrada = paquete.getContenidoBloque("claveSimetricaCifrada");
-        byte[] selloTiempo = paquete.getContenidoBloque("selloTiempo");
-
-        if (facturaCifrada == null || firmaAutoridad == null || claveSimetricaCifrada == null || selloTiempo == null) {
-            System.out.println("Error: Faltan bloques necesarios en el paquete");
-            return;
-        }
-
         // Leer la clave privada de Hacienda
-        PrivateKey clavePrivadaHacienda = leerClavePrivada(clavePrivadaHaciendaPath);
+        PrivateKey clavePrivadaHacienda = AlmacenClaves.compartido().clavePrivada(clavePrivadaHaciendaPath);
 
         // Leer la clave pública de la Autoridad de Sellado
-        PublicKey clavePublicaAutoridad = leerClavePublica(clavePublicaAutoridadPath);
-
-        // Verificar la firma de la Autoridad sobre el sello de tiempo
-        Signature signature = Signature.getInstance("SHA256withRSA", "BC");
-        signature.initVerify(clavePublicaAutoridad);
-        signature.update(selloTiempo);
-        boolean firmaValida = signature.verify(firmaAutoridad);
-        
-        if (!firmaValida) {
-            System.out.println("Firma de la Autoridad no válida.");
+        PublicKey clavePublicaAutoridad = AlmacenClaves.compartido().clavePublica(clavePublicaAutoridadPath);
+
+        try {
+            if (args.length == 6) {
+                long extraidos = extraerRango(Paths.get(paquetePath), Paths.get(facturaJsonPath),
+                                              clavePrivadaHacienda, clavePublicaAutoridad, desde, longitud);
+                System.out.println("Extraidos " + extraidos + " bytes de la factura desde la posicion " + desde);
+            } else {
+                byte[] selloTiempo = desempaquetar(Paths.get(paquetePath), Paths.get(facturaJsonPath),
+                                                   clavePrivadaHacienda, clavePublicaAutoridad);
+                System.out.println("Sello de tiempo: " + new String(selloTiempo));
+            }
+        } catch (PaqueteInvalidoException e) {
+            System.out.println(e.getMessage());
             return;
         }
 
-        System.out.println("Sello de tiempo: " + new String(selloTiempo));
-
-        // Desencriptar la clave simétrica con la clave privada de Hacienda (RSA)
-        Cipher cipherRSA = Cipher.getInstance("RSA/ECB/PKCS1Padding", "BC");
-        cipherRSA.init(Cipher.DECRYPT_MODE, clavePrivadaHacienda);
-        byte[] claveSimetricaDescifrada = cipherRSA.doFinal(claveSimetricaCifrada);
+        System.out.println("Factura desempaquetada y verificada correctamente.");
+    }
 
-        // Desencriptar la factura con AES (clave simétrica)
-        SecretKeySpec claveSimetrica = new SecretKeySpec(claveSimetricaDescifrada, "AES");
-        Cipher cipherAES = Cipher.getInstance("AES", "BC");
-        cipherAES.init(Cipher.DECRYPT_MODE, claveSimetrica);
-        byte[] facturaDescifrada = cipherAES.doFinal(facturaCifrada);
+    /**
+     * Verifica el sello de la Autoridad y descifra la factura del paquete en
+     * el fichero indicado. Devuelve el sello de tiempo del paquete.
+     */
+    public static byte[] desempaquetar(Path paquetePath, Path facturaJsonPath,
+                                       PrivateKey clavePrivadaHacienda, PublicKey clavePublicaAutoridad) throws Exception {
+        long inicio = Metricas.inicio();
+        try (PaqueteMapeado paquete = new PaqueteMapeado(paquetePath)) {
+            // Leer solo los bloques pequeños; la factura cifrada se procesa despues en streaming
+            byte[] selloTiempo = comprobarSello(paquete, clavePublicaAutoridad);
+
+            // Desencriptar la clave simétrica con la clave privada de Hacienda (o de otro destinatario)
+            SecretKey claveSimetrica = Destinatarios.abrirClave(paquete, clavePrivadaHacienda);
+
+            // Desencriptar la factura con AES (clave simétrica) por trozos, escribiendo directamente en el
+            // fichero JSON (descomprimiendo por el camino si se comprimio al empaquetar)
+            Compresion compresion = Compresion.leerBloque(paquete.getContenidoBloque(Compresion.BLOQUE));
+            byte[] tablaSegmentos = paquete.getContenidoBloque("tablaSegmentos");
+            try (OutputStream out = compresion.descomprimir(Files.newOutputStream(facturaJsonPath))) {
+                if (tablaSegmentos != null) {
+                    // Modo segmentado: los segmentos se descifran y comprueban en paralelo
+                    CifradoSegmentado.TablaSegmentos tabla = CifradoSegmentado.TablaSegmentos.decodificar(tablaSegmentos);
+                    CifradoSegmentado.descifrar(claveSimetrica, tabla, paquete.abrirBloque("facturaCifrada"), out);
+                } else {
+                    // Si hay resumen de la factura cifrada se comprueba a la vez que se descifra
+                    byte[] resumenFactura = paquete.getContenidoBloque("resumenFactura");
+                    MessageDigest resumen = MessageDigest.getInstance(EmpaquetarFactura.ALGORITMO_RESUMEN);
+                    InputStream contenidoCifrado = new DigestInputStream(paquete.abrirBloque("facturaCifrada"), resumen);
+                    Cipher cipherAES = ContextoCripto.cifrador("AES", SelectorProveedores.proveedor("AES"), Cipher.DECRYPT_MODE, claveSimetrica);
+                    descifrarFlujo(cipherAES, contenidoCifrado, out);
+                    if ((resumenFactura != null) && !MessageDigest.isEqual(resumenFactura, resumen.digest())) {
+                        Metricas.fallo(Metricas.Fallo.CONTENIDO_ALTERADO);
+                        throw new PaqueteInvalidoException("El resumen de la factura cifrada no coincide.");
+                    }
+                }
+            } catch (Exception e) {
+                Files.deleteIfExists(facturaJsonPath);
+                throw e;
+            }
+
+            Metricas.fin(Metricas.Etapa.DESEMPAQUETADO, inicio, paquetePath);
+            return selloTiempo;
+        }
+    }
 
-        // Guardar la factura descifrada en un fichero JSON
-        Files.write(Paths.get(facturaJsonPath), facturaDescifrada);
+    /**
+     * Abre la factura de un paquete segmentado como un canal de solo lectura
+     * sobre el texto claro en el que se puede leer cualquier rango: solo se
+     * leen y descifran (comprobando su etiqueta GCM) los segmentos que lo
+     * contienen. Antes se comprueba el sello de la Autoridad, como en
+     * desempaquetar. No sirve para paquetes CLASICO ni con la factura
+     * comprimida.
+     */
+    public static SeekableByteChannel abrirFactura(Path paquetePath, PrivateKey clavePrivadaHacienda,
+                                                   PublicKey clavePublicaAutoridad) throws Exception {
+        PaqueteMapeado paquete = new PaqueteMapeado(paquetePath);
+        try {
+            comprobarSello(paquete, clavePublicaAutoridad);
+            byte[] tablaSegmentos = paquete.getContenidoBloque("tablaSegmentos");
+            if (tablaSegmentos == null) {
+                Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+                throw new PaqueteInvalidoException("Solo se puede leer por rangos la factura de un paquete segmentado");
+            }
+            if (Compresion.leerBloque(paquete.getContenidoBloque(Compresion.BLOQUE)) != Compresion.NINGUNA) {
+                Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+                throw new PaqueteInvalidoException("No se puede leer por rangos una factura comprimida");
+            }
+            CifradoSegmentado.TablaSegmentos tabla = CifradoSegmentado.TablaSegmentos.decodificar(tablaSegmentos);
+            SecretKey claveSimetrica = Destinatarios.abrirClave(paquete, clavePrivadaHacienda);
+            return new CifradoSegmentado.CanalDescifrado(paquete, claveSimetrica, tabla);
+        } catch (Exception e) {
+            paquete.close();
+            throw e;
+        }
+    }
 
-        System.out.println("Factura desempaquetada y verificada correctamente.");
+    /**
+     * Escribe en el fichero indicado hasta longitud bytes de la factura a
+     * partir de desde (ver abrirFactura). Devuelve los bytes escritos.
+     */
+    public static long extraerRango(Path paquetePath, Path destino, PrivateKey clavePrivadaHacienda,
+                                    PublicKey clavePublicaAutoridad, long desde, long longitud) throws Exception {
+        long escritos = 0;
+        try (SeekableByteChannel factura = abrirFactura(paquetePath, clavePrivadaHacienda, clavePublicaAutoridad);
+             OutputStream out = Files.newOutputStream(destino)) {
+            factura.position(desde);
+            ByteBuffer buffer = ByteBuffer.allocate(EmpaquetarFactura.TAMANO_BUFFER);
+            while (escritos < longitud) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), longitud - escritos));
+                if (factura.read(buffer) < 0) {
+                    break;
+                }
+                out.write(buffer.array(), 0, buffer.position());
+                escritos += buffer.position();
+            }
+        } catch (Exception e) {
+            Files.deleteIfExists(destino);
+            throw e;
+        }
+        return escritos;
     }
 
-    private static PrivateKey leerClavePrivada(String clavePrivadaPath) throws Exception {
-        byte[] keyBytes = Files.readAllBytes(Paths.get(clavePrivadaPath));
-        PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA", "BC");
-        return keyFactory.generatePrivate(spec);
+    /*
+     * Verifica la firma de la Autoridad sobre el sello de tiempo o, si se sello
+     * en lote (ServicioSellado), sobre la raiz de Merkle que incluye el sello
+     * de este paquete. Devuelve el sello de tiempo.
+     */
+    private static byte[] comprobarSello(PaqueteMapeado paquete, PublicKey clavePublicaAutoridad) throws Exception {
+        byte[] firmaAutoridad = paquete.getContenidoBloque("firmaAutoridad");
+        byte[] selloTiempo = paquete.getContenidoBloque("selloTiempo");
+
+        // Verificar que los bloques necesarios existen
+        if (!paquete.contieneBloque("facturaCifrada") || firmaAutoridad == null || selloTiempo == null) {
+            Metricas.fallo(Metricas.Fallo.BLOQUE_AUSENTE);
+            throw new PaqueteInvalidoException("Error: Faltan bloques necesarios en el paquete");
+        }
+
+        byte[] datosSello = selloTiempo;
+        byte[] pruebaInclusion = paquete.getContenidoBloque("pruebaInclusion");
+        if (pruebaInclusion != null) {
+            byte[] firmaEmpresa = paquete.getContenidoBloque("firmaEmpresa");
+            if (firmaEmpresa == null) {
+                Metricas.fallo(Metricas.Fallo.BLOQUE_AUSENTE);
+                throw new PaqueteInvalidoException("Error: Faltan bloques necesarios en el paquete");
+            }
+            byte[] hoja = ArbolMerkle.hoja(ArbolMerkle.resumen(firmaEmpresa), selloTiempo);
+            datosSello = ArbolMerkle.raizDesdePrueba(hoja, pruebaInclusion);
+        }
+        if (!SellarFactura.verificarFirma(clavePublicaAutoridad, datosSello, firmaAutoridad)) {
+            Metricas.fallo(Metricas.Fallo.FIRMA_NO_VALIDA);
+            throw new PaqueteInvalidoException("Firma de la Autoridad no válida.");
+        }
+        return selloTiempo;
     }
 
-    private static PublicKey leerClavePublica(String clavePublicaPath) throws Exception {
-        byte[] keyBytes = Files.readAllBytes(Paths.get(clavePublicaPath));
-        X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA", "BC");
-        return keyFactory.generatePublic(spec);
+    private static void descifrarFlujo(Cipher cipher, InputStream in, OutputStream out) throws Exception {
+        byte[] buffer = new byte[EmpaquetarFactura.TAMANO_BUFFER];
+        byte[] descifrado = new byte[cipher.getOutputSize(EmpaquetarFactura.TAMANO_BUFFER)];
+        long inicio = Metricas.inicio();
+        int leidos = in.read(buffer);
+        Metricas.fin(Metricas.Etapa.LECTURA, inicio, leidos);
+        while (leidos >= 0) {
+            inicio = Metricas.inicio();
+            int n = cipher.update(buffer, 0, leidos, descifrado, 0);
+            Metricas.fin(Metricas.Etapa.AES, inicio, leidos);
+            inicio = Metricas.inicio();
+            out.write(descifrado, 0, n);
+            Metricas.fin(Metricas.Etapa.ESCRITURA, inicio, n);
+            inicio = Metricas.inicio();
+            leidos = in.read(buffer);
+            Metricas.fin(Metricas.Etapa.LECTURA, inicio, leidos);
+        }
+        out.write(cipher.doFinal());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,170 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.XECPrivateKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import javax.crypto.KeyAgreement;
+import javax.crypto.SecretKey;
+
+/**
+ * Destinatarios de un paquete: la factura se cifra una sola vez y la clave
+ * AES se guarda envuelta para cada destinatario. El primero (Hacienda) usa el
+ * bloque claveSimetricaCifrada de siempre, envuelto segun el bloque perfil,
+ * de modo que las versiones anteriores pueden leer el paquete. Los demas usan
+ * un bloque claveSimetricaCifrada_HUELLA, donde HUELLA son los primeros bytes
+ * del SHA-256 de la clave publica del destinatario (codificacion X.509).
+ *
+ * Los bloques de clave no entran en firmaEmpresa, de modo que se pueden
+ * añadir destinatarios a un paquete ya firmado y sellado (AnadirDestinatario).
+ */
+final class Destinatarios {
+
+    static final String BLOQUE_LEGADO = "claveSimetricaCifrada";
+    static final String PREFIJO_BLOQUE = BLOQUE_LEGADO + "_";
+    static final int TAMANO_HUELLA = 8;
+
+    private Destinatarios() {
+    }
+
+    static String huella(PublicKey clave) throws GeneralSecurityException {
+        byte[] resumen = MessageDigest.getInstance("SHA-256").digest(clave.getEncoded());
+        return HexFormat.of().withUpperCase().formatHex(resumen, 0, TAMANO_HUELLA);
+    }
+
+    static String nombreBloque(PublicKey destinatario) throws GeneralSecurityException {
+        return Paquete.normalizarNombre(PREFIJO_BLOQUE + huella(destinatario));
+    }
+
+    /**
+     * Bloque de clave del destinatario que ocupa la posicion indicada en la
+     * lista de destinatarios del paquete.
+     */
+    static String nombreBloque(PublicKey destinatario, int posicion) throws GeneralSecurityException {
+        return (posicion == 0) ? BLOQUE_LEGADO : nombreBloque(destinatario);
+    }
+
+    /**
+     * Envuelve la clave AES para el destinatario segun el tipo de su clave.
+     */
+    static byte[] envolver(SecretKey claveAES, PublicKey destinatario) throws GeneralSecurityException {
+        long inicio = Metricas.inicio();
+        byte[] result = PerfilCripto.paraEnvoltura(destinatario).envolverClave(claveAES, destinatario);
+        Metricas.fin(Metricas.Etapa.ENVOLTURA_CLAVE, inicio);
+        return result;
+    }
+
+    /**
+     * Recupera la clave AES del paquete con la clave privada de uno de sus
+     * destinatarios. Si de la clave privada se puede obtener la publica (RSA,
+     * X25519) el bloque se elige por su huella; si no, se prueba con cada
+     * bloque de destinatario, pero solo con las envolturas que detectan una
+     * clave equivocada (AESWrap). Con RSA (PKCS#1 v1.5) una clave equivocada
+     * puede descifrar sin error, asi que sin la publica no se elige bloque de
+     * destinatario. Si no hay bloque con huella para la clave se usa el bloque
+     * claveSimetricaCifrada (Hacienda).
+     */
+    static SecretKey abrirClave(PaqueteMapeado paquete, PrivateKey clavePrivada) throws IOException, GeneralSecurityException {
+        long inicio = Metricas.inicio();
+        PerfilCripto perfil = PerfilCripto.paraEnvoltura(clavePrivada);
+        SecretKey result = null;
+
+        PublicKey clavePublica = clavePublicaDe(clavePrivada);
+        if (clavePublica != null) {
+            byte[] bloque = paquete.getContenidoBloque(nombreBloque(clavePublica));
+            if (bloque != null) {
+                result = perfil.desenvolverClave(bloque, clavePrivada);
+            }
+        } else if (perfil != PerfilCripto.RSA) {
+            for (String nombre : bloquesDestinatario(paquete)) {
+                try {
+                    result = perfil.desenvolverClave(paquete.getContenidoBloque(nombre), clavePrivada);
+                    break;
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    // Bloque de otro destinatario
+                }
+            }
+        }
+
+        byte[] legado = paquete.getContenidoBloque(BLOQUE_LEGADO);
+        if ((result == null) && (legado != null)) {
+            PerfilCripto perfilEnvoltura = PerfilCripto.leerBloquePerfil(paquete.getContenidoBloque("perfil"))[1];
+            if (perfilEnvoltura != perfil) {
+                Metricas.fallo(Metricas.Fallo.PERFIL_INCOMPATIBLE);
+                throw new PaqueteInvalidoException("La clave simetrica del paquete esta cifrada con el perfil " + perfilEnvoltura
+                        + " y la clave privada de Hacienda es " + clavePrivada.getAlgorithm());
+            }
+            try {
+                result = perfil.desenvolverClave(legado, clavePrivada);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // No es la clave de Hacienda
+            }
+        }
+        if (result == null) {
+            Metricas.fallo(Metricas.Fallo.BLOQUE_AUSENTE);
+            if ((clavePublica == null) && (perfil == PerfilCripto.RSA) && !bloquesDestinatario(paquete).isEmpty()) {
+                throw new PaqueteInvalidoException("No se puede obtener la clave publica de esta clave privada RSA"
+                        + " (sin parametros CRT) para elegir su bloque de clave simetrica cifrada");
+            }
+            throw new PaqueteInvalidoException("El paquete no tiene la clave simetrica cifrada para esta clave privada");
+        }
+        Metricas.fin(Metricas.Etapa.APERTURA_CLAVE, inicio);
+        return result;
+    }
+
+    static List<String> bloquesDestinatario(PaqueteMapeado paquete) {
+        String prefijo = Paquete.normalizarNombre(PREFIJO_BLOQUE);
+        List<String> result = new ArrayList<>();
+        for (String nombre : paquete.getNombresBloque()) {
+            if (nombre.startsWith(prefijo)) {
+                result.add(nombre);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Clave publica correspondiente a una privada, o null si no se puede
+     * obtener con la API de JCA. En X25519 la publica es el resultado del
+     * acuerdo de claves con el punto base (u = 9).
+     */
+    static PublicKey clavePublicaDe(PrivateKey clavePrivada) {
+        try {
+            if (clavePrivada instanceof RSAPrivateCrtKey) {
+                RSAPrivateCrtKey rsa = (RSAPrivateCrtKey) clavePrivada;
+                KeyFactory keyFactory = ContextoCripto.factoriaClaves("RSA", "BC");
+                return keyFactory.generatePublic(new RSAPublicKeySpec(rsa.getModulus(), rsa.getPublicExponent()));
+            }
+            if ((clavePrivada instanceof XECPrivateKey)
+                    && NamedParameterSpec.X25519.getName().equalsIgnoreCase(
+                            ((NamedParameterSpec) ((XECPrivateKey) clavePrivada).getParams()).getName())) {
+                KeyFactory keyFactory = ContextoCripto.factoriaClaves("XDH", "SunEC");
+                PublicKey base = keyFactory.generatePublic(new XECPublicKeySpec(NamedParameterSpec.X25519, BigInteger.valueOf(9)));
+                KeyAgreement acuerdo = KeyAgreement.getInstance("XDH", "SunEC");
+                acuerdo.init(clavePrivada);
+                acuerdo.doPhase(base, true);
+                byte[] u = acuerdo.generateSecret();  // Little-endian
+                for (int i = 0; i < u.length / 2; i++) {
+                    byte b = u[i];
+                    u[i] = u[u.length - 1 - i];
+                    u[u.length - 1 - i] = b;
+                }
+                return keyFactory.generatePublic(new XECPublicKeySpec(NamedParameterSpec.X25519, new BigInteger(1, u)));
+            }
+        } catch (GeneralSecurityException | ClassCastException e) {
+            // Se prueba con todos los bloques
+        }
+        return null;
+    }
+}
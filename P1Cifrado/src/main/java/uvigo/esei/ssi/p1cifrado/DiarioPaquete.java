@@ -0,0 +1,204 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Añade bloques al final de un paquete ya escrito sin reescribir los que ya
+ * tiene: se trunca el fichero justo antes de la marca de fin (FIN PAQUETE, o
+ * la marca de fin de bloques y el indice en formato binario) y se escriben
+ * los bloques nuevos seguidos de una marca de fin nueva.
+ *
+ * Para que una caida a mitad de la operacion no deje el paquete corrupto, lo
+ * que se va a escribir se prepara antes en un fichero diario junto al paquete
+ * (posicion de corte + bytes finales). El diario se escribe en un temporal y se
+ * renombra de forma atomica; una vez aplicado se borra. Si al añadir bloques se
+ * encuentra un diario pendiente, se vuelve a aplicar primero (la operacion es
+ * idempotente).
+ *
+ * Al aplicar el diario el paquete queda un momento sin marca de fin, asi que
+ * los lectores (PaqueteMapeado y Paquete.leerPaquete con la ruta del paquete)
+ * lo leen con el paquete bloqueado para lectura y, si encuentran un diario
+ * pendiente de una caida, lo aplican antes (bloquearLectura).
+ *
+ * Toda la secuencia (recuperar, preparar el diario y aplicarlo) se hace con el
+ * paquete bloqueado: entre hilos con un cerrojo por ruta y entre procesos con
+ * un FileLock sobre el propio paquete. Mientras dura, el paquete solo se lee y
+ * escribe a traves del canal bloqueado, porque cerrar cualquier otro canal del
+ * mismo fichero liberaria el FileLock.
+ */
+class DiarioPaquete {
+
+    private static final Map<Path, Cerrojo> CERROJOS = new HashMap<>();
+
+    private DiarioPaquete() {
+    }
+
+    static Path rutaDiario(Path paquete) {
+        return paquete.resolveSibling(paquete.getFileName() + ".diario");
+    }
+
+    static void anadirBloques(Path paquete, Paquete nuevos) throws IOException {
+        Cerrojo cerrojo = bloquear(paquete);
+        try (FileChannel canal = FileChannel.open(paquete, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            canal.lock();  // Se libera al cerrar el canal
+            recuperar(paquete, canal);
+
+            long corte;
+            FormatoPaquete formato;
+            boolean conIndice;
+            Map<String, long[]> indice;
+            try (PaqueteMapeado actual = new PaqueteMapeado(canal)) {
+                corte = actual.getPosicionFin();
+                formato = actual.getFormato();
+                conIndice = actual.tieneIndice();
+                indice = actual.getIndiceBinario();
+            }
+
+            Path diario = rutaDiario(paquete);
+            Path temporal = diario.resolveSibling(diario.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal)))) {
+                out.writeLong(corte);
+                EscritorPaquete escritor;
+                if (formato == FormatoPaquete.BINARIO) {
+                    escritor = new EscritorPaqueteBinario(out, conIndice, corte, indice);
+                } else {
+                    escritor = new EscritorPaqueteTexto(out, false);
+                }
+                for (String nombreBloque : nuevos.getNombresBloque()) {
+                    escritor.escribirBloque(nombreBloque, nuevos.getContenidoBloque(nombreBloque));
+                }
+                escritor.close();
+            }
+            try (FileChannel canalTemporal = FileChannel.open(temporal, StandardOpenOption.WRITE)) {
+                canalTemporal.force(true);
+            }
+            Files.move(temporal, diario, StandardCopyOption.ATOMIC_MOVE);
+            sincronizarDirectorio(diario);
+
+            aplicar(canal, diario);
+        } finally {
+            cerrojo.liberar();
+        }
+    }
+
+    /**
+     * Completa la escritura pendiente de un paquete si quedo un diario sin aplicar.
+     */
+    static void recuperar(Path paquete) throws IOException {
+        Cerrojo cerrojo = bloquear(paquete);
+        try (FileChannel canal = FileChannel.open(paquete, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            canal.lock();
+            recuperar(paquete, canal);
+        } finally {
+            cerrojo.liberar();
+        }
+    }
+
+    /**
+     * Bloquea para lectura el paquete, abierto en el canal indicado, frente a
+     * los que añaden bloques desde otros procesos (los de este proceso se
+     * excluyen con bloquear). Si queda un diario pendiente lo aplica antes.
+     * El bloqueo se libera al cerrar el canal.
+     */
+    static FileLock bloquearLectura(Path paquete, FileChannel canal) throws IOException {
+        FileLock bloqueo = canal.lock(0, Long.MAX_VALUE, true);
+        if (Files.exists(rutaDiario(paquete))) {
+            // Se libera antes de recuperar, que abre y cierra su propio canal
+            bloqueo.release();
+            recuperar(paquete);
+            bloqueo = canal.lock(0, Long.MAX_VALUE, true);
+        }
+        return bloqueo;
+    }
+
+    /**
+     * Bloquea el paquete frente a otros hilos de este proceso hasta llamar a
+     * liberar; lo puede volver a bloquear el mismo hilo. Sirve tambien para
+     * agrupar con el añadido de bloques otras operaciones sobre el paquete
+     * (ver SellarFactura.anadirSello).
+     */
+    static Cerrojo bloquear(Path paquete) {
+        Path clave = paquete.toAbsolutePath().normalize();
+        Cerrojo cerrojo;
+        synchronized (CERROJOS) {
+            cerrojo = CERROJOS.computeIfAbsent(clave, Cerrojo::new);
+            cerrojo.usuarios++;
+        }
+        cerrojo.cerrojo.lock();
+        return cerrojo;
+    }
+
+    private static void recuperar(Path paquete, FileChannel canal) throws IOException {
+        Path diario = rutaDiario(paquete);
+        Files.deleteIfExists(diario.resolveSibling(diario.getFileName() + ".tmp"));
+        if (Files.exists(diario)) {
+            aplicar(canal, diario);
+        }
+    }
+
+    private static void aplicar(FileChannel destino, Path diario) throws IOException {
+        try (FileChannel origen = FileChannel.open(diario, StandardOpenOption.READ)) {
+            ByteBuffer cabecera = ByteBuffer.allocate(Long.BYTES);
+            while (cabecera.hasRemaining() && (origen.read(cabecera, cabecera.position()) >= 0)) {
+                // Leer la posicion de corte
+            }
+            long corte = cabecera.flip().getLong();
+
+            destino.truncate(corte);
+            long posicion = Long.BYTES;
+            long tamano = origen.size();
+            while (posicion < tamano) {
+                posicion += origen.transferTo(posicion, tamano - posicion, destino.position(corte + posicion - Long.BYTES));
+            }
+            destino.force(true);
+        }
+        Files.delete(diario);
+    }
+
+    /*
+     * Hace persistente el renombrado del diario; sin esto, tras una caida el
+     * directorio podria no contener aun el diario aunque su contenido ya este
+     * en disco. Hay sistemas que no permiten abrir un directorio; en ellos el
+     * renombrado ya es persistente o no hay forma de forzarlo.
+     */
+    private static void sincronizarDirectorio(Path fichero) {
+        Path directorio = fichero.toAbsolutePath().getParent();
+        try (FileChannel canal = FileChannel.open(directorio, StandardOpenOption.READ)) {
+            canal.force(true);
+        } catch (IOException | UnsupportedOperationException e) {
+            // No se puede forzar en este sistema
+        }
+    }
+
+    static final class Cerrojo {
+
+        private final Path clave;
+        private final ReentrantLock cerrojo = new ReentrantLock();
+        private int usuarios;
+
+        private Cerrojo(Path clave) {
+            this.clave = clave;
+        }
+
+        void liberar() {
+            this.cerrojo.unlock();
+            synchronized (CERROJOS) {
+                if (--this.usuarios == 0) {
+                    CERROJOS.remove(this.clave);
+                }
+            }
+        }
+    }
+}
@@ -1,59 +1,45 @@
 package uvigo.esei.ssi.p1cifrado;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.*;
-import java.security.spec.X509EncodedKeySpec;
-import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.List;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class EmpaquetarFactura {
 
+    static final int TAMANO_BUFFER = 64 * 1024;
+    static final String ALGORITMO_RESUMEN = "SHA-256";
+
     public static void main(String[] args) {
-        if (args.length != 4) {
-            System.out.println("Uso: java EmpaquetarFactura <fichero JSON factura> <nombre paquete> <clave publica Hacienda> <clave privada Empresa>");
+        if (args.length < 4 || args.length > 7) {
+            System.out.println("Uso: java EmpaquetarFactura <fichero JSON factura> <nombre paquete> <clave publica Hacienda>[,<clave publica otro destinatario>...] <clave privada Empresa> [texto|binario] [clasico|resumen|segmentado] [ninguna|deflate]");
             System.exit(1);
         }
 
-        Security.addProvider(new BouncyCastleProvider());
+        ContextoCripto.registrarProvider();
         String archivoFactura = args[0];
         String nombrePaquete = args[1];
         String clavePublicaHacienda = args[2];
         String clavePrivadaEmpresa = args[3];
+        FormatoPaquete formato = (args.length >= 5) ? FormatoPaquete.deNombre(args[4]) : FormatoPaquete.TEXTO;
+        ModoCifrado modo = (args.length >= 6) ? ModoCifrado.deNombre(args[5]) : ModoCifrado.CLASICO;
+        Compresion compresion = (args.length == 7) ? Compresion.deNombre(args[6]) : Compresion.NINGUNA;
 
         try {
-            // Leer el contenido de la factura
-            byte[] contenidoFactura = Files.readAllBytes(Paths.get(archivoFactura));
-
-            // Generar clave AES para cifrar el contenido
-            SecretKey claveAES = generarClaveAES();
-
-            // Cifrar el contenido de la factura con AES
-            byte[] contenidoCifradoAES = cifrarContenido(contenidoFactura, "AES", "BC", claveAES);
-
-            // Cargar clave pública de Hacienda
-            PublicKey publicKeyHacienda = cargarClavePublica(clavePublicaHacienda);
+            // Cargar clave pública de Hacienda y de los demas destinatarios
+            List<PublicKey> destinatarios = AlmacenClaves.compartido().clavesPublicas(clavePublicaHacienda);
 
-            // Cifrar la clave AES con RSA usando la clave pública de Hacienda
-            byte[] claveAESCifrada = cifrarContenido(claveAES.getEncoded(),
-                                      "RSA/ECB/PKCS1Padding", "BC", publicKeyHacienda);
+            PrivateKey privateKeyEmpresa = AlmacenClaves.compartido().clavePrivada(clavePrivadaEmpresa);
 
-            // Firmar el contenido cifrado AES con la clave privada de la empresa
-            PrivateKey privateKeyEmpresa = cargarClavePrivada(clavePrivadaEmpresa);
-            Signature firma = Signature.getInstance("SHA256withRSA", "BC");
-            firma.initSign(privateKeyEmpresa);
-            firma.update(contenidoCifradoAES);
-            byte[] firmaEmpresa = firma.sign();
-
-            // Crear y guardar el paquete
-            Paquete paquete = new Paquete();
-            paquete.anadirBloque("facturaCifrada", contenidoCifradoAES);
-            paquete.anadirBloque("claveSimetricaCifrada", claveAESCifrada);
-            paquete.anadirBloque("firmaEmpresa", firmaEmpresa);
-            paquete.escribirPaquete(nombrePaquete);
+            empaquetar(Paths.get(archivoFactura), Paths.get(nombrePaquete), destinatarios, privateKeyEmpresa, formato, modo, compresion);
 
             System.out.println("Factura empaquetada exitosamente en " + nombrePaquete);
 
@@ -62,29 +48,165 @@ public class EmpaquetarFactura {
             e.printStackTrace();
         }
     }
-    
-    private static byte[] cifrarContenido(byte[] datos, String transformacion,
-                            String provider, Key clave) throws Exception {
-        Cipher cipher = Cipher.getInstance(transformacion, provider);
-        cipher.init(Cipher.ENCRYPT_MODE, clave);
-        return cipher.doFinal(datos);
+
+    /**
+     * Cifra y firma la factura indicada, escribiendo el paquete resultante.
+     */
+    public static void empaquetar(Path archivoFactura, Path nombrePaquete,
+                                  PublicKey publicKeyHacienda, PrivateKey privateKeyEmpresa) throws Exception {
+        empaquetar(archivoFactura, nombrePaquete, publicKeyHacienda, privateKeyEmpresa, FormatoPaquete.TEXTO);
+    }
+
+    public static void empaquetar(Path archivoFactura, Path nombrePaquete, PublicKey publicKeyHacienda,
+                                  PrivateKey privateKeyEmpresa, FormatoPaquete formato) throws Exception {
+        empaquetar(archivoFactura, nombrePaquete, publicKeyHacienda, privateKeyEmpresa, formato, ModoCifrado.CLASICO);
+    }
+
+    public static void empaquetar(Path archivoFactura, Path nombrePaquete, PublicKey publicKeyHacienda,
+                                  PrivateKey privateKeyEmpresa, FormatoPaquete formato, ModoCifrado modo) throws Exception {
+        empaquetar(archivoFactura, nombrePaquete, publicKeyHacienda, privateKeyEmpresa, formato, modo, Compresion.NINGUNA);
+    }
+
+    /**
+     * Con compresion, la factura se comprime mientras se lee y lo que se
+     * cifra (y firma) es el resultado comprimido.
+     */
+    public static void empaquetar(Path archivoFactura, Path nombrePaquete, PublicKey publicKeyHacienda,
+                                  PrivateKey privateKeyEmpresa, FormatoPaquete formato, ModoCifrado modo,
+                                  Compresion compresion) throws Exception {
+        empaquetar(archivoFactura, nombrePaquete, List.of(publicKeyHacienda), privateKeyEmpresa, formato, modo, compresion);
+    }
+
+    /**
+     * La factura se cifra una sola vez y la clave AES se envuelve para cada
+     * destinatario (ver Destinatarios); el primero es Hacienda.
+     */
+    public static void empaquetar(Path archivoFactura, Path nombrePaquete, List<PublicKey> destinatarios,
+                                  PrivateKey privateKeyEmpresa, FormatoPaquete formato, ModoCifrado modo,
+                                  Compresion compresion) throws Exception {
+        long inicio = Metricas.inicio();
+
+        // Generar clave AES para cifrar el contenido
+        SecretKey claveAES = generarClaveAES();
+
+        // Los algoritmos de firma y de cifrado de la clave AES dependen del tipo de cada clave
+        PerfilCripto perfilFirma = PerfilCripto.paraFirma(privateKeyEmpresa);
+        PerfilCripto perfilEnvoltura = PerfilCripto.paraEnvoltura(destinatarios.get(0));
+
+        // Crear el paquete: la factura se lee, cifra, firma y codifica en una sola pasada
+        try (InputStream in = compresion.comprimir(Files.newInputStream(archivoFactura));
+             EscritorPaquete paquete = EscritorPaquete.crear(Files.newOutputStream(nombrePaquete), formato)) {
+            paquete.escribirBloque("perfil", PerfilCripto.bloquePerfil(perfilFirma, perfilEnvoltura));
+            if (compresion != Compresion.NINGUNA) {
+                paquete.escribirBloque(Compresion.BLOQUE, compresion.bloque());
+            }
+            // Cifrar la clave AES con la clave pública de cada destinatario
+            for (int i = 0; i < destinatarios.size(); i++) {
+                PublicKey destinatario = destinatarios.get(i);
+                paquete.escribirBloque(Destinatarios.nombreBloque(destinatario, i), Destinatarios.envolver(claveAES, destinatario));
+            }
+
+            if (modo == ModoCifrado.SEGMENTADO) {
+                // Cifrar los segmentos en paralelo con AES-GCM y firmar la tabla con sus etiquetas
+                CifradoSegmentado.TablaSegmentos tabla;
+                try (OutputStream out = paquete.abrirBloque("facturaCifrada")) {
+                    tabla = CifradoSegmentado.cifrar(claveAES, in, out);
+                }
+                byte[] contenidoTabla = tabla.codificar();
+                paquete.escribirBloque("tablaSegmentos", contenidoTabla);
+                paquete.escribirBloque("firmaEmpresa", firmar(perfilFirma, privateKeyEmpresa, contenidoTabla));
+            } else if (modo == ModoCifrado.RESUMEN) {
+                // Cifrar el contenido de la factura con AES calculando a la vez el resumen del
+                // resultado; la empresa firma el resumen, asi que no hay que volver a leer la factura
+                // cifrada para comprobar la firma
+                Cipher cipher = ContextoCripto.cifrador("AES", SelectorProveedores.proveedor("AES"), Cipher.ENCRYPT_MODE, claveAES);
+                MessageDigest resumen = MessageDigest.getInstance(ALGORITMO_RESUMEN);
+                try (OutputStream out = new DigestOutputStream(paquete.abrirBloque("facturaCifrada"), resumen)) {
+                    cifrarFlujo(cipher, in, out);
+                }
+                byte[] resumenFactura = resumen.digest();
+                paquete.escribirBloque("resumenFactura", resumenFactura);
+                paquete.escribirBloque("firmaEmpresa", firmar(perfilFirma, privateKeyEmpresa, resumenFactura));
+            } else {
+                // Cifrar el contenido de la factura con AES y firmar el resultado con la clave
+                // privada de la empresa a medida que se escribe
+                Cipher cipher = ContextoCripto.cifrador("AES", SelectorProveedores.proveedor("AES"), Cipher.ENCRYPT_MODE, claveAES);
+                Signature firma = perfilFirma.firmador(privateKeyEmpresa);
+                try (OutputStream out = new SalidaFirmada(paquete.abrirBloque("facturaCifrada"), firma)) {
+                    cifrarFlujo(cipher, in, out);
+                }
+                long inicioFirma = Metricas.inicio();
+                byte[] firmaEmpresa = firma.sign();
+                Metricas.fin(Metricas.Etapa.FIRMA, inicioFirma);
+                paquete.escribirBloque("firmaEmpresa", firmaEmpresa);
+            }
+        }
+        Metricas.fin(Metricas.Etapa.EMPAQUETADO, inicio, archivoFactura);
+    }
+
+    private static byte[] firmar(PerfilCripto perfil, PrivateKey clave, byte[] datos) throws Exception {
+        long inicio = Metricas.inicio();
+        Signature firma = perfil.firmador(clave);
+        firma.update(datos);
+        byte[] result = firma.sign();
+        Metricas.fin(Metricas.Etapa.FIRMA, inicio);
+        return result;
+    }
+
+    /*
+     * Cifra la entrada por trozos de TAMANO_BUFFER escribiendo el texto cifrado
+     * en la salida.
+     */
+    static void cifrarFlujo(Cipher cipher, InputStream in, OutputStream out) throws Exception {
+        byte[] buffer = new byte[TAMANO_BUFFER];
+        byte[] cifrado = new byte[cipher.getOutputSize(TAMANO_BUFFER)];
+        long inicio = Metricas.inicio();
+        int leidos = in.read(buffer);
+        Metricas.fin(Metricas.Etapa.LECTURA, inicio, leidos);
+        while (leidos >= 0) {
+            inicio = Metricas.inicio();
+            int n = cipher.update(buffer, 0, leidos, cifrado, 0);
+            Metricas.fin(Metricas.Etapa.AES, inicio, leidos);
+            inicio = Metricas.inicio();
+            out.write(cifrado, 0, n);
+            Metricas.fin(Metricas.Etapa.ESCRITURA, inicio, n);
+            inicio = Metricas.inicio();
+            leidos = in.read(buffer);
+            Metricas.fin(Metricas.Etapa.LECTURA, inicio, leidos);
+        }
+        out.write(cipher.doFinal());
     }
 
     private static SecretKey generarClaveAES() throws Exception {
-        KeyGenerator kg = KeyGenerator.getInstance("AES", "BC");
-        kg.init(128);
+        KeyGenerator kg = ContextoCripto.generadorClaves("AES", SelectorProveedores.proveedor("AES"), 128);
         return kg.generateKey();
     }
 
-    private static PublicKey cargarClavePublica(String path) throws Exception {
-        byte[] keyBytes = Files.readAllBytes(Paths.get(path));
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA", "BC");
-        return keyFactory.generatePublic(new X509EncodedKeySpec(keyBytes));
-    }
+    /*
+     * Actualiza la firma con todo lo que se escribe.
+     */
+    private static class SalidaFirmada extends FilterOutputStream {
 
-    private static PrivateKey cargarClavePrivada(String path) throws Exception {
-        byte[] keyBytes = Files.readAllBytes(Paths.get(path));
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA", "BC");
-        return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(keyBytes));
+        private final Signature firma;
+
+        SalidaFirmada(OutputStream out, Signature firma) {
+            super(out);
+            this.firma = firma;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                this.firma.update(b, off, len);
+            } catch (SignatureException e) {
+                throw new IOException("Error al firmar la factura cifrada", e);
+            }
+            this.out.write(b, off, len);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Escritura en streaming de un paquete, bloque a bloque, sin mantener el
+ * contenido completo de los bloques en memoria.
+ *
+ * @author ribadas
+ */
+public abstract class EscritorPaquete implements Closeable {
+
+    public static EscritorPaquete crear(OutputStream salida) throws IOException {
+        return crear(salida, FormatoPaquete.TEXTO);
+    }
+
+    public static EscritorPaquete crear(OutputStream salida, FormatoPaquete formato) throws IOException {
+        if (formato == FormatoPaquete.BINARIO) {
+            return new EscritorPaqueteBinario(salida, true);
+        }
+        return new EscritorPaqueteTexto(salida);
+    }
+
+    /**
+     * Abre un nuevo bloque y devuelve el stream donde escribir su contenido
+     * (sin codificar). Al cerrar el stream se escribe la marca de fin de bloque.
+     */
+    public abstract OutputStream abrirBloque(String nombreBloque) throws IOException;
+
+    public void escribirBloque(String nombreBloque, byte[] contenido) throws IOException {
+        if ((nombreBloque != null) && (contenido != null)) {
+            try (OutputStream out = this.abrirBloque(nombreBloque)) {
+                out.write(contenido);
+            }
+        }
+    }
+}
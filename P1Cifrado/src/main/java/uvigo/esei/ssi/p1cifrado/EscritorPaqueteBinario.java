@@ -0,0 +1,182 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Escritura en streaming de un paquete en formato binario (ver
+ * FormatoPaquete): el contenido de los bloques se guarda sin codificar, en
+ * trozos de TAMANO_TROZO bytes con prefijo de longitud.
+ */
+class EscritorPaqueteBinario extends EscritorPaquete {
+
+    private final DataOutputStream salida;
+    private final boolean conIndice;
+    private final List<EntradaIndice> indice = new ArrayList<>();
+    private SalidaTrozos bloqueAbierto;
+    private boolean cerrado;
+    // Posicion actual en el fichero (DataOutputStream.size() se satura en Integer.MAX_VALUE)
+    private long posicion = FormatoPaquete.TAMANO_CABECERA_BINARIO;
+
+    EscritorPaqueteBinario(OutputStream salida, boolean conIndice) throws IOException {
+        this.salida = new DataOutputStream(new BufferedOutputStream(salida, 64 * 1024));
+        this.conIndice = conIndice;
+        this.salida.write(FormatoPaquete.MAGIA_BINARIO);
+        this.salida.writeByte(FormatoPaquete.VERSION_BINARIO);
+        this.salida.writeByte(conIndice ? FormatoPaquete.CON_INDICE : 0);
+        this.salida.writeInt(FormatoPaquete.TAMANO_TROZO);
+    }
+
+    /*
+     * Continua un paquete existente a partir de su marca de fin de bloques (ver
+     * DiarioPaquete): no escribe cabecera y el indice final incluye los bloques
+     * que ya tenia el paquete.
+     */
+    EscritorPaqueteBinario(OutputStream salida, boolean conIndice, long posicion, Map<String, long[]> indicePrevio) {
+        this.salida = new DataOutputStream(new BufferedOutputStream(salida, 64 * 1024));
+        this.conIndice = conIndice;
+        this.posicion = posicion;
+        for (Map.Entry<String, long[]> previa : indicePrevio.entrySet()) {
+            EntradaIndice entrada = new EntradaIndice(previa.getKey(), previa.getValue()[0]);
+            entrada.longitud = previa.getValue()[1];
+            this.indice.add(entrada);
+        }
+    }
+
+    @Override
+    public OutputStream abrirBloque(String nombreBloque) throws IOException {
+        if (this.cerrado) {
+            throw new IOException("Paquete ya cerrado");
+        }
+        if (this.bloqueAbierto != null) {
+            throw new IOException("Bloque " + this.bloqueAbierto.entrada.nombre + " sin cerrar");
+        }
+        String nombreNormalizado = Paquete.normalizarNombre(nombreBloque);
+        escribirNombre(nombreNormalizado);
+        this.bloqueAbierto = new SalidaTrozos(new EntradaIndice(nombreNormalizado, this.posicion));
+        return this.bloqueAbierto;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.cerrado) {
+            if (this.bloqueAbierto != null) {
+                this.bloqueAbierto.close();
+            }
+            this.salida.writeShort(0);  // Fin de los bloques
+            this.posicion += 2;
+            if (this.conIndice) {
+                long posicionIndice = this.posicion;
+                this.salida.writeInt(this.indice.size());
+                for (EntradaIndice entrada : this.indice) {
+                    escribirNombre(entrada.nombre);
+                    this.salida.writeLong(entrada.posicion);
+                    this.salida.writeLong(entrada.longitud);
+                }
+                this.salida.writeLong(posicionIndice);
+                this.salida.write(FormatoPaquete.MAGIA_INDICE);
+            }
+            this.cerrado = true;
+            this.salida.close();
+        }
+    }
+
+    private void escribirNombre(String nombre) throws IOException {
+        byte[] bytesNombre = nombre.getBytes(StandardCharsets.UTF_8);
+        this.salida.writeShort(bytesNombre.length);
+        this.salida.write(bytesNombre);
+        this.posicion += 2 + bytesNombre.length;
+    }
+
+    private static class EntradaIndice {
+
+        final String nombre;
+        long posicion;
+        long longitud;
+
+        EntradaIndice(String nombre, long posicion) {
+            this.nombre = nombre;
+            this.posicion = posicion;
+        }
+    }
+
+    /*
+     * Acumula el contenido en un trozo de TAMANO_TROZO bytes y lo vuelca con su
+     * prefijo de longitud cuando se llena. Al cerrarse escribe el ultimo trozo
+     * (si no esta vacio) y el trozo vacio que marca el fin del bloque.
+     */
+    private class SalidaTrozos extends OutputStream {
+
+        final EntradaIndice entrada;
+        private final byte[] trozo = new byte[FormatoPaquete.TAMANO_TROZO];
+        private int ocupado;
+        private boolean cerrada;
+
+        SalidaTrozos(EntradaIndice entrada) {
+            this.entrada = entrada;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.trozo[this.ocupado++] = (byte) b;
+            if (this.ocupado == this.trozo.length) {
+                this.volcar();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if ((this.ocupado == 0) && (len >= this.trozo.length)) {
+                    // Trozo completo: se escribe directamente sin copiarlo
+                    this.escribirTrozo(b, off, this.trozo.length);
+                    off += this.trozo.length;
+                    len -= this.trozo.length;
+                } else {
+                    int n = Math.min(len, this.trozo.length - this.ocupado);
+                    System.arraycopy(b, off, this.trozo, this.ocupado, n);
+                    this.ocupado += n;
+                    off += n;
+                    len -= n;
+                    if (this.ocupado == this.trozo.length) {
+                        this.volcar();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.cerrada) {
+                this.cerrada = true;
+                this.volcar();
+                salida.writeInt(0);
+                posicion += 4;
+                // Si el nombre ya existia prevalece el ultimo bloque escrito
+                indice.removeIf(e -> e.nombre.equals(this.entrada.nombre));
+                indice.add(this.entrada);
+                bloqueAbierto = null;
+            }
+        }
+
+        private void volcar() throws IOException {
+            if (this.ocupado > 0) {
+                this.escribirTrozo(this.trozo, 0, this.ocupado);
+                this.ocupado = 0;
+            }
+        }
+
+        private void escribirTrozo(byte[] b, int off, int len) throws IOException {
+            salida.writeInt(len);
+            salida.write(b, off, len);
+            posicion += 4 + len;
+            this.entrada.longitud += len;
+        }
+    }
+}
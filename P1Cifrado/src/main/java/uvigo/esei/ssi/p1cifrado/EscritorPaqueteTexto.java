@@ -0,0 +1,128 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Escritura en streaming de un paquete en formato texto: cada bloque se
+ * codifica en BASE64 y se parte en lineas de ANCHO_LINEA caracteres a medida
+ * que llegan los datos, sin mantener el contenido completo del bloque en memoria.
+ * La codificacion (CodecBase64) se hace sobre un unico buffer reutilizado por
+ * todos los bloques.
+ *
+ * @author ribadas
+ */
+class EscritorPaqueteTexto extends EscritorPaquete {
+
+    private final OutputStream salida;
+    private final ByteBuffer codificado = ByteBuffer.allocate(64 * 1024);
+    private SalidaBase64 bloqueAbierto;
+    private boolean cerrado;
+
+    EscritorPaqueteTexto(OutputStream salida) throws IOException {
+        this(salida, true);
+    }
+
+    /*
+     * Sin cabecera se usa para continuar un paquete ya existente (ver DiarioPaquete).
+     */
+    EscritorPaqueteTexto(OutputStream salida, boolean cabecera) throws IOException {
+        this.salida = new BufferedOutputStream(salida, 64 * 1024);
+        if (cabecera) {
+            this.escribirLinea(Paquete.INICIO_PAQUETE);
+        }
+    }
+
+    @Override
+    public OutputStream abrirBloque(String nombreBloque) throws IOException {
+        if (this.cerrado) {
+            throw new IOException("Paquete ya cerrado");
+        }
+        if (this.bloqueAbierto != null) {
+            throw new IOException("Bloque " + this.bloqueAbierto.nombre + " sin cerrar");
+        }
+        String nombreNormalizado = Paquete.normalizarNombre(nombreBloque);
+        this.escribirLinea(String.format(Paquete.INICIO_BLOQUE_FORMATO, nombreNormalizado));
+        this.bloqueAbierto = new SalidaBase64(nombreNormalizado);
+        return this.bloqueAbierto;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!this.cerrado) {
+            if (this.bloqueAbierto != null) {
+                this.bloqueAbierto.close();
+            }
+            this.escribirLinea(Paquete.FIN_PAQUETE);
+            this.cerrado = true;
+            this.salida.close();
+        }
+    }
+
+    private void escribirLinea(String linea) throws IOException {
+        this.salida.write(linea.getBytes(Paquete.CHARSET));
+        this.salida.write('\n');
+    }
+
+    private void vaciar() throws IOException {
+        this.salida.write(this.codificado.array(), 0, this.codificado.position());
+        this.codificado.clear();
+    }
+
+    /*
+     * Codifica en BASE64 lo que recibe, con un salto de linea cada ANCHO_LINEA
+     * caracteres. Al cerrarse escribe el ultimo grupo con relleno, termina la
+     * ultima linea (vacia si el contenido es multiplo exacto del ancho, igual
+     * que el formato original) y escribe el fin de bloque.
+     */
+    private class SalidaBase64 extends OutputStream {
+
+        private final String nombre;
+        private final CodecBase64.Codificador codificador = new CodecBase64.Codificador(Paquete.ANCHO_LINEA);
+        private final byte[] unByte = new byte[1];
+        private boolean cerrada;
+
+        SalidaBase64(String nombre) {
+            this.nombre = nombre;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.unByte[0] = (byte) b;
+            this.write(this.unByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer origen = ByteBuffer.wrap(b, off, len);
+            long inicio = Metricas.inicio();
+            while (!this.codificador.codificar(origen, codificado)) {
+                vaciar();
+            }
+            Metricas.fin(Metricas.Etapa.CODIFICACION, inicio, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            vaciar();
+            salida.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.cerrada) {
+                this.cerrada = true;
+                if (!this.codificador.terminar(codificado)) {
+                    vaciar();
+                    this.codificador.terminar(codificado);
+                }
+                vaciar();
+                salida.write('\n');
+                escribirLinea(String.format(Paquete.FIN_BLOQUE_FORMATO, this.nombre));
+                bloqueAbierto = null;
+            }
+        }
+    }
+}
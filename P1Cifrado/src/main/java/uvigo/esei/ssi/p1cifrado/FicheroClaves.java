@@ -0,0 +1,204 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fichero de claves con indice: guarda muchos pares de claves en un solo
+ * fichero en lugar de dos ficheros (.publica y .privada) por par.
+ * <pre>
+ *   cabecera: "P1CK" | version (1 byte)
+ *   claves:   por par: publica X.509 | privada PKCS#8
+ *   indice:   num. pares (int) | por par: nombre (UTF) | tipo (UTF) |
+ *             posicion publica (long) | longitud (int) | posicion privada (long) | longitud (int)
+ *   pie:      posicion del indice (long) | "P1CK"
+ * </pre>
+ * Al abrirlo solo se lee el indice; cada clave se lee de su posicion cuando
+ * se pide. Desde AlmacenClaves se puede referenciar una entrada como
+ * fichero#nombre.
+ */
+public class FicheroClaves implements Closeable {
+
+    private static final byte[] MAGIA = {'P', '1', 'C', 'K'};
+    private static final byte VERSION = 1;
+    private static final int TAMANO_PIE = 12;
+
+    private final FileChannel canal;
+    private final Map<String, Entrada> indice = new LinkedHashMap<>();
+
+    public FicheroClaves(Path fichero) throws IOException {
+        this.canal = FileChannel.open(fichero, StandardOpenOption.READ);
+        try {
+            byte[] pie = this.leer(this.canal.size() - TAMANO_PIE, TAMANO_PIE);
+            if ((pie.length != TAMANO_PIE) || !Arrays.equals(pie, 8, 12, MAGIA, 0, MAGIA.length)) {
+                throw new IOException("No es un fichero de claves: " + fichero);
+            }
+            long posicionIndice = ByteBuffer.wrap(pie).getLong();
+            byte[] bytesIndice = this.leer(posicionIndice, (int) (this.canal.size() - TAMANO_PIE - posicionIndice));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytesIndice));
+            int numEntradas = in.readInt();
+            for (int i = 0; i < numEntradas; i++) {
+                String nombre = in.readUTF();
+                TipoClave tipo = TipoClave.valueOf(in.readUTF());
+                Entrada entrada = new Entrada(tipo, in.readLong(), in.readInt(), in.readLong(), in.readInt());
+                this.indice.put(nombre, entrada);
+            }
+        } catch (IOException | RuntimeException ex) {
+            this.canal.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Escribe los pares de claves en un fichero nuevo (se sustituye de forma
+     * atomica si ya existia). Contiene claves privadas, asi que el temporal se
+     * crea con createTempFile (en POSIX, solo legible por el propietario).
+     */
+    public static void escribir(Path fichero, Map<String, KeyPair> claves, TipoClave tipo) throws IOException {
+        Path temporal = Files.createTempFile(fichero.toAbsolutePath().getParent(), fichero.getFileName().toString(), ".tmp");
+        try {
+            escribirIndice(temporal, claves, tipo);
+            Files.move(temporal, fichero, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporal);
+        }
+    }
+
+    private static void escribirIndice(Path temporal, Map<String, KeyPair> claves, TipoClave tipo) throws IOException {
+        List<String> nombres = new ArrayList<>(claves.keySet());
+        long[] posiciones = new long[nombres.size() * 2];
+        int[] longitudes = new int[nombres.size() * 2];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporal)))) {
+            out.write(MAGIA);
+            out.writeByte(VERSION);
+            long posicion = MAGIA.length + 1;
+            for (int i = 0; i < nombres.size(); i++) {
+                KeyPair par = claves.get(nombres.get(i));
+                byte[] publica = par.getPublic().getEncoded();
+                byte[] privada = par.getPrivate().getEncoded();
+                posiciones[2 * i] = posicion;
+                longitudes[2 * i] = publica.length;
+                posiciones[2 * i + 1] = posicion + publica.length;
+                longitudes[2 * i + 1] = privada.length;
+                out.write(publica);
+                out.write(privada);
+                posicion += publica.length + privada.length;
+            }
+            out.writeInt(nombres.size());
+            for (int i = 0; i < nombres.size(); i++) {
+                out.writeUTF(nombres.get(i));
+                out.writeUTF(tipo.name());
+                out.writeLong(posiciones[2 * i]);
+                out.writeInt(longitudes[2 * i]);
+                out.writeLong(posiciones[2 * i + 1]);
+                out.writeInt(longitudes[2 * i + 1]);
+            }
+            out.writeLong(posicion);
+            out.write(MAGIA);
+        }
+    }
+
+    public List<String> getNombres() {
+        return new ArrayList<>(this.indice.keySet());
+    }
+
+    public boolean contiene(String nombre) {
+        return this.indice.containsKey(nombre);
+    }
+
+    public TipoClave getTipo(String nombre) throws IOException {
+        return this.entrada(nombre).tipo;
+    }
+
+    /**
+     * Codificacion (X.509 o PKCS#8) de la clave publica o privada de una entrada.
+     */
+    public byte[] getCodificacion(String nombre, boolean privada) throws IOException {
+        Entrada entrada = this.entrada(nombre);
+        return privada ? this.leer(entrada.posicionPrivada, entrada.longitudPrivada)
+                       : this.leer(entrada.posicionPublica, entrada.longitudPublica);
+    }
+
+    public PublicKey clavePublica(String nombre) throws IOException, GeneralSecurityException {
+        return (PublicKey) decodificar(this.getTipo(nombre), this.getCodificacion(nombre, false), false);
+    }
+
+    public PrivateKey clavePrivada(String nombre) throws IOException, GeneralSecurityException {
+        return (PrivateKey) decodificar(this.getTipo(nombre), this.getCodificacion(nombre, true), true);
+    }
+
+    static Key decodificar(TipoClave tipo, byte[] codificacion, boolean privada) throws GeneralSecurityException {
+        KeyFactory keyFactory = ContextoCripto.factoriaClaves(tipo.getAlgoritmo(), tipo.getProvider());
+        if (privada) {
+            return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(codificacion));
+        } else {
+            return keyFactory.generatePublic(new X509EncodedKeySpec(codificacion));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.canal.close();
+    }
+
+    private Entrada entrada(String nombre) throws IOException {
+        Entrada entrada = this.indice.get(nombre);
+        if (entrada == null) {
+            throw new IOException("No existe la clave " + nombre + " en el fichero de claves");
+        }
+        return entrada;
+    }
+
+    private byte[] leer(long posicion, int longitud) throws IOException {
+        if ((posicion < 0) || (longitud < 0)) {
+            throw new IOException("Fichero de claves corrupto");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(longitud);
+        while (buffer.hasRemaining()) {
+            if (this.canal.read(buffer, posicion + buffer.position()) < 0) {
+                throw new IOException("Fichero de claves truncado");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static class Entrada {
+
+        final TipoClave tipo;
+        final long posicionPublica;
+        final int longitudPublica;
+        final long posicionPrivada;
+        final int longitudPrivada;
+
+        Entrada(TipoClave tipo, long posicionPublica, int longitudPublica, long posicionPrivada, int longitudPrivada) {
+            this.tipo = tipo;
+            this.posicionPublica = posicionPublica;
+            this.longitudPublica = longitudPublica;
+            this.posicionPrivada = posicionPrivada;
+            this.longitudPrivada = longitudPrivada;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.util.Arrays;
+
+/**
+ * Formatos de fichero de paquete.
+ *
+ * TEXTO es el formato original (cabeceras -----INICIO BLOQUE X----- y
+ * contenido en BASE64). BINARIO guarda el contenido tal cual, en trozos con
+ * prefijo de longitud:
+ * <pre>
+ *   cabecera:  "P1CB" | version (1 byte) | flags (1 byte) | tamaño de trozo (int)
+ *   bloque:    longitud nombre (short) | nombre UTF-8 | trozos | trozo vacio (int 0)
+ *   trozo:     longitud (int) | datos   (todos de "tamaño de trozo" salvo el ultimo)
+ *   fin:       longitud nombre 0 (short)
+ *   indice:    (si flags & CON_INDICE) num. bloques (int) |
+ *              por bloque: longitud nombre (short) | nombre | posicion (long) | longitud (long)
+ *   pie:       (si flags & CON_INDICE) posicion del indice (long) | "P1CI"
+ * </pre>
+ * La posicion del indice apunta al primer trozo del bloque y la longitud es
+ * la del contenido ya sin trozos.
+ */
+public enum FormatoPaquete {
+
+    TEXTO, BINARIO;
+
+    public static final byte[] MAGIA_BINARIO = {'P', '1', 'C', 'B'};
+    public static final byte[] MAGIA_INDICE = {'P', '1', 'C', 'I'};
+    public static final byte VERSION_BINARIO = 1;
+    public static final byte CON_INDICE = 0x01;
+    public static final int TAMANO_CABECERA_BINARIO = 10;
+    public static final int TAMANO_PIE_BINARIO = 12;
+    public static final int TAMANO_TROZO = 64 * 1024;
+
+    /**
+     * Detecta el formato a partir de los primeros bytes del fichero.
+     */
+    public static FormatoPaquete detectar(byte[] inicio, int longitud) {
+        if ((longitud >= MAGIA_BINARIO.length)
+                && Arrays.equals(inicio, 0, MAGIA_BINARIO.length, MAGIA_BINARIO, 0, MAGIA_BINARIO.length)) {
+            return BINARIO;
+        }
+        return TEXTO;
+    }
+
+    public static FormatoPaquete deNombre(String nombre) {
+        return FormatoPaquete.valueOf(nombre.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,89 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Generacion masiva de pares de claves en paralelo. A diferencia de
+ * GenerarClaves (un par RSA de 512 bits por ejecucion, en dos ficheros), genera
+ * N pares del tipo indicado repartidos entre los nucleos y los guarda en un
+ * unico FicheroClaves con nombres prefijo00001, prefijo00002...
+ */
+public class GeneradorClaves {
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 5) {
+            mensajeAyuda();
+            System.exit(1);
+        }
+
+        ContextoCripto.registrarProvider();
+        TipoClave tipo = TipoClave.deNombre(args[0]);
+        int numero = Integer.parseInt(args[1]);
+        Path fichero = Paths.get(args[2]);
+        String prefijo = (args.length >= 4) ? args[3] : "clave";
+        int hilos = (args.length == 5) ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+        try {
+            long inicio = System.nanoTime();
+            List<KeyPair> pares = generar(tipo, numero, hilos);
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+
+            Map<String, KeyPair> claves = new LinkedHashMap<>();
+            for (int i = 0; i < pares.size(); i++) {
+                claves.put(String.format("%s%05d", prefijo, i + 1), pares.get(i));
+            }
+            FicheroClaves.escribir(fichero, claves, tipo);
+
+            System.out.printf("Generados %d pares %s en %s en %.2f s (%.1f pares/s)%n",
+                    numero, tipo, fichero, segundos, numero / segundos);
+        } catch (Exception e) {
+            System.err.println("Error al generar las claves");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Genera los pares en un ForkJoinPool con el numero de hilos indicado;
+     * cada hilo reutiliza su KeyPairGenerator.
+     */
+    public static List<KeyPair> generar(TipoClave tipo, int numero, int hilos) throws GeneralSecurityException {
+        ForkJoinPool pool = new ForkJoinPool(hilos);
+        try {
+            return pool.submit(() -> IntStream.range(0, numero).parallel()
+                    .mapToObj(i -> generarPar(tipo))
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Generacion de claves interrumpida", e);
+        } catch (ExecutionException e) {
+            throw new GeneralSecurityException("Error al generar las claves", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static KeyPair generarPar(TipoClave tipo) {
+        try {
+            return ContextoCripto.generadorParesClaves(tipo).generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void mensajeAyuda() {
+        System.out.println("Generador masivo de pares de claves");
+        System.out.println("\tSintaxis:   java GeneradorClaves <rsa-2048|rsa-3072|rsa-4096|ec-p256|ed25519|x25519> <num pares> <fichero claves> [prefijo] [hilos]");
+        System.out.println();
+    }
+}
@@ -52,6 +52,7 @@ public class GenerarClaves {
 	public static void mensajeAyuda() {
 		System.out.println("Generador de pares de clave RSA de 512 bits");
 		System.out.println("\tSintaxis:   java GenerarClaves prefijo");
+		System.out.println("\tPara generar muchos pares, de otros tipos o tamaños, usar GeneradorClaves");
 		System.out.println();
 	}
 }
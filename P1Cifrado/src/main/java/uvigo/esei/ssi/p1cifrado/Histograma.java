@@ -0,0 +1,104 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma log-lineal de valores no negativos (latencias en ns), al estilo
+ * de HdrHistogram: cada potencia de dos se divide en SUBINTERVALOS intervalos
+ * iguales, de modo que el error relativo de los percentiles es como mucho
+ * 1/SUBINTERVALOS (6,25%) con un numero fijo de contadores.
+ *
+ * Se puede registrar desde varios hilos a la vez sin bloqueos.
+ */
+class Histograma {
+
+    private static final int BITS_SUBINTERVALO = 4;
+    private static final int SUBINTERVALOS = 1 << BITS_SUBINTERVALO;
+    private static final int NUM_INTERVALOS = (64 - BITS_SUBINTERVALO) * SUBINTERVALOS;
+
+    private final AtomicLongArray contadores = new AtomicLongArray(NUM_INTERVALOS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder suma = new LongAdder();
+    private final AtomicLong maximo = new AtomicLong();
+
+    void registrar(long valor) {
+        long v = Math.max(0, valor);
+        this.contadores.incrementAndGet(intervalo(v));
+        this.total.increment();
+        this.suma.add(v);
+        if (v > this.maximo.get()) {
+            this.maximo.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    long getTotal() {
+        return this.total.sum();
+    }
+
+    long getSuma() {
+        return this.suma.sum();
+    }
+
+    long getMaximo() {
+        return this.maximo.get();
+    }
+
+    double getMedia() {
+        long n = this.total.sum();
+        return (n == 0) ? 0 : (double) this.suma.sum() / n;
+    }
+
+    /**
+     * Valor por debajo del cual queda la fraccion indicada (0-1) de los
+     * registros, redondeado al limite superior de su intervalo.
+     */
+    long percentil(double fraccion) {
+        long n = this.total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long objetivo = Math.max(1, (long) Math.ceil(fraccion * n));
+        long acumulado = 0;
+        for (int i = 0; i < NUM_INTERVALOS; i++) {
+            acumulado += this.contadores.get(i);
+            if (acumulado >= objetivo) {
+                return Math.min(limiteSuperior(i), this.maximo.get());
+            }
+        }
+        return this.maximo.get();
+    }
+
+    void reiniciar() {
+        for (int i = 0; i < NUM_INTERVALOS; i++) {
+            this.contadores.set(i, 0);
+        }
+        this.total.reset();
+        this.suma.reset();
+        this.maximo.set(0);
+    }
+
+    /*
+     * Los valores menores que SUBINTERVALOS tienen intervalo propio; el resto
+     * se agrupa por exponente y por los BITS_SUBINTERVALO bits siguientes.
+     */
+    static int intervalo(long valor) {
+        if (valor < SUBINTERVALOS) {
+            return (int) valor;
+        }
+        int exponente = 63 - Long.numberOfLeadingZeros(valor);
+        int sub = (int) (valor >>> (exponente - BITS_SUBINTERVALO)) & (SUBINTERVALOS - 1);
+        return (exponente - BITS_SUBINTERVALO + 1) * SUBINTERVALOS + sub;
+    }
+
+    static long limiteSuperior(int intervalo) {
+        if (intervalo < SUBINTERVALOS) {
+            return intervalo;
+        }
+        int exponente = intervalo / SUBINTERVALOS + BITS_SUBINTERVALO - 1;
+        long sub = intervalo % SUBINTERVALOS;
+        long inicio = (SUBINTERVALOS + sub) << (exponente - BITS_SUBINTERVALO);
+        return inicio + (1L << (exponente - BITS_SUBINTERVALO)) - 1;
+    }
+}
@@ -0,0 +1,55 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Lectura en streaming de un paquete, bloque a bloque. El formato (texto o
+ * binario) se detecta automaticamente.
+ *
+ * Uso:
+ * <pre>
+ *   String nombre = lector.siguienteBloque();
+ *   while (nombre != null) {
+ *       InputStream contenido = lector.contenidoBloque();
+ *       ...
+ *       nombre = lector.siguienteBloque();
+ *   }
+ * </pre>
+ *
+ * @author ribadas
+ */
+public abstract class LectorPaquete implements Closeable {
+
+    public static LectorPaquete abrir(InputStream entrada) throws IOException {
+        InputStream in = entrada.markSupported() ? entrada : new BufferedInputStream(entrada, 64 * 1024);
+        byte[] inicio = new byte[FormatoPaquete.MAGIA_BINARIO.length];
+        in.mark(inicio.length);
+        int leidos = in.readNBytes(inicio, 0, inicio.length);
+        in.reset();
+        if (FormatoPaquete.detectar(inicio, leidos) == FormatoPaquete.BINARIO) {
+            return new LectorPaqueteBinario(in);
+        }
+        return new LectorPaqueteTexto(in);
+    }
+
+    public abstract FormatoPaquete getFormato();
+
+    /**
+     * Avanza hasta el siguiente bloque (descartando lo que quede del actual) y
+     * devuelve su nombre normalizado, o null si se ha llegado al fin del paquete.
+     */
+    public abstract String siguienteBloque() throws IOException;
+
+    /**
+     * Contenido (ya decodificado) del bloque devuelto por la ultima llamada a
+     * siguienteBloque().
+     */
+    public abstract InputStream contenidoBloque();
+
+    public byte[] leerContenidoBloque() throws IOException {
+        return this.contenidoBloque().readAllBytes();
+    }
+}
@@ -0,0 +1,147 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Lectura en streaming de un paquete en formato binario (ver FormatoPaquete).
+ * Lee los bloques en orden, sin usar el indice final.
+ */
+class LectorPaqueteBinario extends LectorPaquete {
+
+    private final DataInputStream entrada;
+    private EntradaTrozos bloqueActual;
+    private boolean finPaquete;
+
+    LectorPaqueteBinario(InputStream entrada) throws IOException {
+        this.entrada = new DataInputStream(entrada);
+        byte[] magia = new byte[FormatoPaquete.MAGIA_BINARIO.length];
+        this.entrada.readFully(magia);
+        if (!Arrays.equals(magia, FormatoPaquete.MAGIA_BINARIO)) {
+            throw new IOException("No es un paquete binario");
+        }
+        byte version = this.entrada.readByte();
+        if (version != FormatoPaquete.VERSION_BINARIO) {
+            throw new IOException("Version de paquete binario no soportada: " + version);
+        }
+        this.entrada.readByte();  // flags
+        this.entrada.readInt();   // tamaño de trozo
+    }
+
+    @Override
+    public FormatoPaquete getFormato() {
+        return FormatoPaquete.BINARIO;
+    }
+
+    @Override
+    public String siguienteBloque() throws IOException {
+        if (this.bloqueActual != null) {
+            this.bloqueActual.saltarResto();
+            this.bloqueActual = null;
+        }
+        if (this.finPaquete) {
+            return null;
+        }
+        int longitudNombre;
+        try {
+            longitudNombre = this.entrada.readUnsignedShort();
+        } catch (EOFException ex) {
+            throw new IOException("Paquete binario truncado", ex);
+        }
+        if (longitudNombre == 0) {
+            this.finPaquete = true;
+            return null;  // No hay más bloques
+        }
+        byte[] nombre = new byte[longitudNombre];
+        this.entrada.readFully(nombre);
+        this.bloqueActual = new EntradaTrozos(this.entrada);
+        return Paquete.normalizarNombre(new String(nombre, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public InputStream contenidoBloque() {
+        if (this.bloqueActual == null) {
+            throw new IllegalStateException("No hay bloque actual");
+        }
+        return this.bloqueActual;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.entrada.close();
+    }
+
+    /*
+     * Entrega el contenido de un bloque leyendo los trozos uno tras otro hasta
+     * encontrar el trozo vacio que marca su fin.
+     */
+    static class EntradaTrozos extends InputStream {
+
+        private final DataInputStream entrada;
+        private int restanteTrozo;
+        private boolean terminado;
+
+        EntradaTrozos(DataInputStream entrada) {
+            this.entrada = entrada;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!this.avanzar()) {
+                return -1;
+            }
+            this.restanteTrozo--;
+            return entrada.readUnsignedByte();
+        }
+
+        @Override
+        public int read(byte[] destino, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.avanzar()) {
+                return -1;
+            }
+            int leidos = entrada.read(destino, off, Math.min(len, this.restanteTrozo));
+            if (leidos < 0) {
+                throw new EOFException("Paquete binario truncado");
+            }
+            this.restanteTrozo -= leidos;
+            return leidos;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if ((n <= 0) || !this.avanzar()) {
+                return 0;
+            }
+            int saltar = (int) Math.min(n, this.restanteTrozo);
+            entrada.skipNBytes(saltar);
+            this.restanteTrozo -= saltar;
+            return saltar;
+        }
+
+        void saltarResto() throws IOException {
+            while (this.avanzar()) {
+                entrada.skipNBytes(this.restanteTrozo);
+                this.restanteTrozo = 0;
+            }
+        }
+
+        private boolean avanzar() throws IOException {
+            while (!this.terminado && (this.restanteTrozo == 0)) {
+                this.restanteTrozo = entrada.readInt();
+                if (this.restanteTrozo == 0) {
+                    this.terminado = true;
+                } else if (this.restanteTrozo < 0) {
+                    throw new IOException("Longitud de trozo no valida");
+                }
+            }
+            return !this.terminado;
+        }
+    }
+}
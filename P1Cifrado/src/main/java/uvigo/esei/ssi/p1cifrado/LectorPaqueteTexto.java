@@ -0,0 +1,206 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Lectura en streaming de un paquete en formato texto. El contenido de cada
+ * bloque se entrega como un InputStream que va decodificando el BASE64
+ * directamente desde el buffer de lectura (CodecBase64), por lo que la memoria
+ * usada no depende del tamaño del bloque y no se crean objetos por linea.
+ *
+ * @author ribadas
+ */
+class LectorPaqueteTexto extends LectorPaquete {
+
+    private final InputStream entrada;
+    private final byte[] buffer = new byte[64 * 1024];
+    private final ByteBuffer vistaBuffer = ByteBuffer.wrap(this.buffer);
+    private final ByteArrayOutputStream bytesLinea = new ByteArrayOutputStream(128);
+    private int posicion;
+    private int limite;
+
+    private EntradaLineas bloqueActual;
+    private boolean finPaquete;
+
+    LectorPaqueteTexto(InputStream entrada) throws IOException {
+        this.entrada = entrada;
+        String linea = this.leerLinea();
+        while ((linea != null) && !linea.equals(Paquete.INICIO_PAQUETE)) {
+            linea = this.leerLinea();
+        }
+        if (linea == null) {
+            throw new IOException("No se encontró el inicio del paquete");
+        }
+    }
+
+    @Override
+    public FormatoPaquete getFormato() {
+        return FormatoPaquete.TEXTO;
+    }
+
+    @Override
+    public String siguienteBloque() throws IOException {
+        if (this.bloqueActual != null) {
+            this.bloqueActual.saltarResto();
+            this.bloqueActual = null;
+        }
+        if (this.finPaquete) {
+            return null;
+        }
+        String linea = this.leerLinea();
+        while ((linea != null) && !linea.startsWith(Paquete.INICIO_BLOQUE) && !linea.equals(Paquete.FIN_PAQUETE)) {
+            linea = this.leerLinea();
+        }
+        if (linea == null) {
+            throw new IOException("Paquete truncado: falta " + Paquete.FIN_PAQUETE);
+        }
+        if (linea.equals(Paquete.FIN_PAQUETE)) {
+            this.finPaquete = true;
+            return null;  // No hay más bloques
+        }
+        this.bloqueActual = new EntradaLineas();
+        return Paquete.normalizarNombre(extraerNombreBloque(linea));
+    }
+
+    @Override
+    public InputStream contenidoBloque() {
+        if (this.bloqueActual == null) {
+            throw new IllegalStateException("No hay bloque actual");
+        }
+        return this.bloqueActual;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.entrada.close();
+    }
+
+    static String extraerNombreBloque(String texto) {
+        int inicioNombreBloque = Paquete.INICIO_BLOQUE.length() + 1;
+        int finNombreBloque = texto.lastIndexOf(Paquete.MARCA_CABECERA);
+        return texto.substring(inicioNombreBloque, finNombreBloque);
+    }
+
+    private boolean rellenar() throws IOException {
+        if (this.posicion < this.limite) {
+            return true;
+        }
+        int leidos = this.entrada.read(this.buffer);
+        while (leidos == 0) {
+            leidos = this.entrada.read(this.buffer);
+        }
+        if (leidos < 0) {
+            return false;
+        }
+        this.posicion = 0;
+        this.limite = leidos;
+        return true;
+    }
+
+    /*
+     * Lee una linea de cabecera (sin el salto de linea). Solo se usa para las
+     * marcas de inicio/fin, nunca para el contenido de los bloques.
+     */
+    private String leerLinea() throws IOException {
+        if (!this.rellenar()) {
+            return null;
+        }
+        this.bytesLinea.reset();
+        while (this.rellenar()) {
+            int fin = this.finLinea();
+            this.bytesLinea.write(this.buffer, this.posicion, fin - this.posicion);
+            this.posicion = fin;
+            if (fin < this.limite) {
+                this.posicion++;  // Salto de linea
+                break;
+            }
+        }
+        String texto = this.bytesLinea.toString(Paquete.CHARSET);
+        return texto.endsWith("\r") ? texto.substring(0, texto.length() - 1) : texto;
+    }
+
+    /*
+     * Posicion del siguiente '\n' en el buffer, o el limite si no lo hay.
+     */
+    private int finLinea() {
+        int fin = this.posicion;
+        while ((fin < this.limite) && (this.buffer[fin] != '\n')) {
+            fin++;
+        }
+        return fin;
+    }
+
+    /*
+     * Contenido decodificado del bloque actual. Como '-' no pertenece al
+     * alfabeto BASE64, una linea que empieza por '-' es la marca de fin de
+     * bloque.
+     */
+    private class EntradaLineas extends InputStream {
+
+        private final CodecBase64.Decodificador decodificador = new CodecBase64.Decodificador();
+        private final byte[] unByte = new byte[1];
+        private boolean inicioLinea = true;
+        private boolean terminado;
+
+        @Override
+        public int read() throws IOException {
+            int n = this.read(this.unByte, 0, 1);
+            return (n < 0) ? -1 : (this.unByte[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] destino, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer salida = ByteBuffer.wrap(destino, off, len);
+            this.decodificador.vaciar(salida);
+            while (salida.hasRemaining() && !this.terminado) {
+                if (this.finBloque()) {
+                    this.decodificador.terminar(salida);
+                    break;
+                }
+                int fin = finLinea();
+                vistaBuffer.limit(fin).position(posicion);
+                long inicio = Metricas.inicio();
+                this.decodificador.decodificar(vistaBuffer, salida);
+                Metricas.fin(Metricas.Etapa.CODIFICACION, inicio, vistaBuffer.position() - posicion);
+                posicion = vistaBuffer.position();
+                this.avanzarLinea(fin);
+            }
+            int n = salida.position() - off;
+            return ((n == 0) && this.terminado) ? -1 : n;
+        }
+
+        void saltarResto() throws IOException {
+            while (!this.terminado && !this.finBloque()) {
+                posicion = finLinea();
+                this.avanzarLinea(posicion);
+            }
+        }
+
+        /*
+         * Consume la marca de fin de bloque si es lo siguiente en la entrada.
+         */
+        private boolean finBloque() throws IOException {
+            if (!rellenar()) {
+                throw new IOException("Paquete truncado: falta " + Paquete.FIN_BLOQUE);
+            }
+            if (this.inicioLinea && (buffer[posicion] == '-')) {
+                leerLinea();
+                this.terminado = true;
+            }
+            return this.terminado;
+        }
+
+        private void avanzarLinea(int fin) {
+            this.inicioLinea = (posicion == fin) && (fin < limite);
+            if (this.inicioLinea) {
+                posicion++;
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Contadores y latencias por etapa del empaquetado, sellado y desempaquetado,
+ * y numero de fallos por motivo.
+ *
+ * Solo se recogen si se arranca con -Dp1cifrado.metricas=true; ACTIVAS es
+ * constante, asi que con las metricas desactivadas el JIT elimina las
+ * llamadas. Activadas, se publican por JMX (MetricasMXBean) y, si se indica
+ * -Dp1cifrado.metricas.fichero=ruta, se vuelcan a ese fichero cada
+ * p1cifrado.metricas.intervalo segundos (10 por defecto) y al terminar.
+ *
+ * Uso: long t = Metricas.inicio(); ...; Metricas.fin(Etapa.AES, t, bytes);
+ * Las etapas pueden anidarse (por ejemplo, la lectura de un bloque en formato
+ * texto incluye su decodificacion BASE64).
+ */
+public final class Metricas implements MetricasMXBean {
+
+    public static final boolean ACTIVAS = Boolean.getBoolean("p1cifrado.metricas");
+
+    public enum Etapa {
+        EMPAQUETADO, SELLADO, DESEMPAQUETADO,
+        LECTURA, CARGA_CLAVES, AES, COMPRESION, ENVOLTURA_CLAVE, APERTURA_CLAVE,
+        FIRMA, VERIFICACION, CODIFICACION, ESCRITURA
+    }
+
+    public enum Fallo {
+        FIRMA_NO_VALIDA, BLOQUE_AUSENTE, CONTENIDO_ALTERADO, PERFIL_INCOMPATIBLE, FORMATO_NO_VALIDO, OTRO
+    }
+
+    private final Map<Etapa, Histograma> latencias = new EnumMap<>(Etapa.class);
+    private final Map<Etapa, LongAdder> bytes = new EnumMap<>(Etapa.class);
+    private final Map<Fallo, LongAdder> fallos = new EnumMap<>(Fallo.class);
+
+    private Metricas() {
+        for (Etapa etapa : Etapa.values()) {
+            this.latencias.put(etapa, new Histograma());
+            this.bytes.put(etapa, new LongAdder());
+        }
+        for (Fallo fallo : Fallo.values()) {
+            this.fallos.put(fallo, new LongAdder());
+        }
+    }
+
+    /**
+     * Instante de inicio de una etapa (0 si las metricas estan desactivadas).
+     */
+    public static long inicio() {
+        return ACTIVAS ? System.nanoTime() : 0L;
+    }
+
+    public static void fin(Etapa etapa, long inicio) {
+        fin(etapa, inicio, 0);
+    }
+
+    public static void fin(Etapa etapa, long inicio, long bytesProcesados) {
+        if (ACTIVAS) {
+            Metricas metricas = Registro.INSTANCIA;
+            metricas.latencias.get(etapa).registrar(System.nanoTime() - inicio);
+            if (bytesProcesados > 0) {
+                metricas.bytes.get(etapa).add(bytesProcesados);
+            }
+        }
+    }
+
+    /**
+     * Como fin(etapa, inicio, bytes), con el tamaño del fichero como bytes procesados.
+     */
+    public static void fin(Etapa etapa, long inicio, Path fichero) throws IOException {
+        if (ACTIVAS) {
+            fin(etapa, inicio, Files.size(fichero));
+        }
+    }
+
+    public static void fallo(Fallo fallo) {
+        if (ACTIVAS) {
+            Registro.INSTANCIA.fallos.get(fallo).increment();
+        }
+    }
+
+    /**
+     * Instancia con las metricas recogidas, o null si estan desactivadas.
+     */
+    public static Metricas instancia() {
+        return ACTIVAS ? Registro.INSTANCIA : null;
+    }
+
+    @Override
+    public List<EstadisticaEtapa> getEtapas() {
+        List<EstadisticaEtapa> result = new ArrayList<>();
+        for (Etapa etapa : Etapa.values()) {
+            Histograma histograma = this.latencias.get(etapa);
+            if (histograma.getTotal() > 0) {
+                result.add(new EstadisticaEtapa(etapa, histograma, this.bytes.get(etapa).sum()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getFallos() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<Fallo, LongAdder> fallo : this.fallos.entrySet()) {
+            result.put(fallo.getKey().name(), fallo.getValue().sum());
+        }
+        return result;
+    }
+
+    @Override
+    public String getInforme() {
+        StringBuilder informe = new StringBuilder();
+        informe.append("Metricas P1Cifrado ").append(new Date()).append('\n');
+        informe.append(String.format("%-16s %10s %10s %10s %10s %10s %10s %10s %10s%n",
+                "etapa", "ops", "MB", "media ms", "p50 ms", "p90 ms", "p99 ms", "max ms", "MB/s"));
+        for (EstadisticaEtapa e : this.getEtapas()) {
+            informe.append(String.format("%-16s %10d %10.2f %10.3f %10.3f %10.3f %10.3f %10.3f %10.2f%n",
+                    e.getEtapa(), e.getOperaciones(), e.getBytes() / (1024.0 * 1024.0), e.getMediaMs(),
+                    e.getP50Ms(), e.getP90Ms(), e.getP99Ms(), e.getMaximoMs(), e.getMbPorSegundo()));
+        }
+        informe.append("Fallos:");
+        for (Map.Entry<String, Long> fallo : this.getFallos().entrySet()) {
+            informe.append(' ').append(fallo.getKey()).append('=').append(fallo.getValue());
+        }
+        return informe.append('\n').toString();
+    }
+
+    @Override
+    public void reiniciar() {
+        for (Etapa etapa : Etapa.values()) {
+            this.latencias.get(etapa).reiniciar();
+            this.bytes.get(etapa).reset();
+        }
+        for (LongAdder fallo : this.fallos.values()) {
+            fallo.reset();
+        }
+    }
+
+    /*
+     * Escribe el informe en un temporal y lo renombra, para que quien lea el
+     * fichero nunca vea un volcado a medias.
+     */
+    private void volcar(Path fichero) {
+        try {
+            Path temporal = fichero.resolveSibling(fichero.getFileName() + ".tmp");
+            Files.writeString(temporal, this.getInforme(), Paquete.CHARSET);
+            Files.move(temporal, fichero, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Error al volcar las metricas en " + fichero + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Resumen de una etapa tal como se publica por JMX.
+     */
+    public static class EstadisticaEtapa {
+
+        private static final double NS_POR_MS = 1e6;
+
+        private final String etapa;
+        private final long operaciones;
+        private final long bytes;
+        private final long sumaNs;
+        private final double mediaNs;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long maximo;
+
+        EstadisticaEtapa(Etapa etapa, Histograma histograma, long bytes) {
+            this.etapa = etapa.name();
+            this.operaciones = histograma.getTotal();
+            this.bytes = bytes;
+            this.sumaNs = histograma.getSuma();
+            this.mediaNs = histograma.getMedia();
+            this.p50 = histograma.percentil(0.5);
+            this.p90 = histograma.percentil(0.9);
+            this.p99 = histograma.percentil(0.99);
+            this.maximo = histograma.getMaximo();
+        }
+
+        public String getEtapa() {
+            return this.etapa;
+        }
+
+        public long getOperaciones() {
+            return this.operaciones;
+        }
+
+        public long getBytes() {
+            return this.bytes;
+        }
+
+        public double getMediaMs() {
+            return this.mediaNs / NS_POR_MS;
+        }
+
+        public double getP50Ms() {
+            return this.p50 / NS_POR_MS;
+        }
+
+        public double getP90Ms() {
+            return this.p90 / NS_POR_MS;
+        }
+
+        public double getP99Ms() {
+            return this.p99 / NS_POR_MS;
+        }
+
+        public double getMaximoMs() {
+            return this.maximo / NS_POR_MS;
+        }
+
+        /**
+         * Bytes por segundo de tiempo dentro de la etapa (sumando todos los hilos).
+         */
+        public double getMbPorSegundo() {
+            return (this.sumaNs == 0) ? 0 : (this.bytes / (1024.0 * 1024.0)) / (this.sumaNs / 1e9);
+        }
+    }
+
+    /*
+     * Se crea (y se registra en JMX) la primera vez que se usa, solo con las
+     * metricas activadas.
+     */
+    private static class Registro {
+
+        static final Metricas INSTANCIA = crear();
+
+        private static Metricas crear() {
+            Metricas metricas = new Metricas();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metricas,
+                        new ObjectName("uvigo.esei.ssi.p1cifrado:type=Metricas"));
+            } catch (Exception e) {
+                System.err.println("No se pudieron publicar las metricas por JMX: " + e.getMessage());
+            }
+            String fichero = System.getProperty("p1cifrado.metricas.fichero");
+            if (fichero != null) {
+                Path ruta = Paths.get(fichero);
+                long intervalo = Long.getLong("p1cifrado.metricas.intervalo", 10);
+                ScheduledExecutorService volcado = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread hilo = new Thread(r, "metricas-volcado");
+                    hilo.setDaemon(true);
+                    return hilo;
+                });
+                volcado.scheduleAtFixedRate(() -> metricas.volcar(ruta), intervalo, intervalo, TimeUnit.SECONDS);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> metricas.volcar(ruta), "metricas-final"));
+            }
+            return metricas;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vista JMX de Metricas (uvigo.esei.ssi.p1cifrado:type=Metricas).
+ */
+public interface MetricasMXBean {
+
+    List<Metricas.EstadisticaEtapa> getEtapas();
+
+    Map<String, Long> getFallos();
+
+    String getInforme();
+
+    void reiniciar();
+}
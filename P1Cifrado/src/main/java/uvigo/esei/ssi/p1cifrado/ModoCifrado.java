@@ -0,0 +1,25 @@
+package uvigo.esei.ssi.p1cifrado;
+
+/**
+ * Modos de cifrado de la factura.
+ *
+ * CLASICO es el original: AES sobre todo el fichero y firmaEmpresa sobre la
+ * factura cifrada completa; es el unico que entienden las versiones
+ * anteriores. El provider de AES lo elige SelectorProveedores, que solo acepta
+ * providers que cifran igual que BC. RESUMEN cifra igual, pero guarda el
+ * resumen SHA-256 de la factura cifrada en el bloque resumenFactura y
+ * firmaEmpresa firma ese resumen, de modo que sellar no depende del tamaño de
+ * la factura; las versiones anteriores lo rechazan. SEGMENTADO usa AES-GCM por
+ * segmentos independientes que se cifran en paralelo (ver CifradoSegmentado);
+ * las etiquetas de cada segmento van en el bloque tablaSegmentos y
+ * firmaEmpresa firma esa tabla. En SEGMENTADO se puede leer un rango de la
+ * factura sin descifrarla entera (DesempaquetarFactura.abrirFactura).
+ */
+public enum ModoCifrado {
+
+    CLASICO, RESUMEN, SEGMENTADO;
+
+    public static ModoCifrado deNombre(String nombre) {
+        return ModoCifrado.valueOf(nombre.trim().toUpperCase());
+    }
+}
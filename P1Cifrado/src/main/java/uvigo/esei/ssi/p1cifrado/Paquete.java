@@ -4,17 +4,21 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Base64;
 
 /**
  *
@@ -23,6 +27,7 @@ import java.util.Base64;
 public class Paquete {
 
     private Map<String, Bloque> bloques;
+    private FormatoPaquete formato = FormatoPaquete.TEXTO;
 
     public Paquete() {
         this.bloques = new HashMap<>();
@@ -75,7 +80,7 @@ public class Paquete {
         return result;
     }
 
-    private String normalizarNombre(String nombreBloque) {
+    static String normalizarNombre(String nombreBloque) {
         String result = nombreBloque.trim().replaceAll(" ", "_").toUpperCase();
         return result;
     }
@@ -88,11 +93,17 @@ public class Paquete {
     public final static String INICIO_BLOQUE_FORMATO = INICIO_BLOQUE + " %s" + MARCA_CABECERA;
     public final static String FIN_BLOQUE_FORMATO = FIN_BLOQUE + " %s" + MARCA_CABECERA;
     public final static int ANCHO_LINEA = 65;
+    // Cabeceras y contenido BASE64 son ASCII; UTF-8 solo afecta a los nombres de bloque
+    public final static Charset CHARSET = StandardCharsets.UTF_8;
 
     public void leerPaquete(String nombreFichero) {
-        try (InputStream in = new FileInputStream(nombreFichero)) {
-            this.leerPaquete(in);
-        } catch (FileNotFoundException ex) {
+        // Con el paquete bloqueado para lectura, por si se le estan añadiendo bloques (ver DiarioPaquete)
+        Path fichero = Paths.get(nombreFichero);
+        DiarioPaquete.Cerrojo cerrojo = DiarioPaquete.bloquear(fichero);
+        try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ)) {
+            DiarioPaquete.bloquearLectura(fichero, canal);
+            this.leerPaquete(Channels.newInputStream(canal));
+        } catch (NoSuchFileException ex) {
             System.err.println("No existe fichero de paquete " + nombreFichero);
             ex.printStackTrace(System.err);
             System.exit(1);
@@ -100,99 +111,61 @@ public class Paquete {
             System.err.println("Error en fichero de paquete " + nombreFichero);
             ex.printStackTrace(System.err);
             System.exit(1);
+        } finally {
+            cerrojo.liberar();
         }
     }
 
     public void escribirPaquete(String nombreFichero) {
-        try (PrintStream out = new PrintStream(nombreFichero)) {
+        try (OutputStream out = new FileOutputStream(nombreFichero)) {
             this.escribirPaquete(out);
         } catch (FileNotFoundException ex) {
             System.err.println("Error escribiendo fichero de paquete " + nombreFichero);
             ex.printStackTrace(System.err);
             System.exit(1);
+        } catch (IOException ex) {
+            System.err.println("Error escribiendo fichero de paquete " + nombreFichero);
+            ex.printStackTrace(System.err);
+            System.exit(1);
         }
     }
 
-    private void leerPaquete(InputStream entrada) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(entrada));
-        String linea = in.readLine();
-
-        while (!linea.equals(INICIO_PAQUETE)) {
-            linea = in.readLine();
-        }
-        Paquete.Bloque bloque = leerBloque(in);
-        while (bloque != null) {
-            this.anadirBloque(bloque.nombre, bloque.contenido);
-            bloque = leerBloque(in);
-        }
+    /**
+     * Formato en que se leyo el paquete y en el que se volvera a escribir.
+     */
+    public FormatoPaquete getFormato() {
+        return this.formato;
     }
 
-    private void escribirPaquete(PrintStream out) {
-        out.println(INICIO_PAQUETE);
-        for (String nombreBloque : this.getNombresBloque()) {
-            escribirBloque(out, nombreBloque, this.getContenidoBloque(nombreBloque));
-        }
-        out.println(FIN_PAQUETE);
+    public void setFormato(FormatoPaquete formato) {
+        this.formato = formato;
     }
 
-    private void escribirBloque(PrintStream out, String nombreBloque, byte[] contenido) {
-        if ((nombreBloque != null) && (contenido != null)) {
-            out.printf(INICIO_BLOQUE_FORMATO + "\n", nombreBloque);
-
-            byte[] contenidoBASE64 = Base64.getEncoder().encode(contenido);
-
-            int lineas = contenidoBASE64.length / ANCHO_LINEA;
-            int resto = contenidoBASE64.length % ANCHO_LINEA;
-            for (int i = 0; i < lineas; i++) {
-                out.println(new String(contenidoBASE64, i * ANCHO_LINEA, ANCHO_LINEA));
-            }
-            out.println(new String(contenidoBASE64, lineas * ANCHO_LINEA, resto));
-
-            out.printf(FIN_BLOQUE_FORMATO + "\n", nombreBloque);
-        }
+    /**
+     * Añade los bloques de este paquete al final del paquete guardado en el
+     * fichero indicado, sin reescribir los bloques que ya contiene (ver
+     * DiarioPaquete). Si un bloque ya existia, prevalece el nuevo.
+     */
+    public void anadirAFichero(Path fichero) throws IOException {
+        DiarioPaquete.anadirBloques(fichero, this);
     }
 
-    private Paquete.Bloque leerBloque(BufferedReader in) throws IOException {
-        String linea = in.readLine();
-        while ((!linea.startsWith(INICIO_BLOQUE) && (!linea.equals(FIN_PAQUETE)))) {
-            linea = in.readLine();
-        }
-        if (linea.equals(FIN_PAQUETE)) {
-            return null;  // No hay más bloques
-        } else {
-            String nombre = extraerNombreBloque(linea);
-            byte[] contenido = extraerContenidoBloque(in);
-            return new Paquete.Bloque(nombre, contenido);
+    public void leerPaquete(InputStream entrada) throws IOException {
+        LectorPaquete lector = LectorPaquete.abrir(entrada);
+        this.formato = lector.getFormato();
+        String nombreBloque = lector.siguienteBloque();
+        while (nombreBloque != null) {
+            this.anadirBloque(nombreBloque, lector.leerContenidoBloque());
+            nombreBloque = lector.siguienteBloque();
         }
     }
 
-    private String extraerNombreBloque(String texto) {
-        int inicioNombreBloque = INICIO_BLOQUE.length() + 1;
-        int finNombreBloque = texto.lastIndexOf(MARCA_CABECERA);
-        return texto.substring(inicioNombreBloque, finNombreBloque);
-    }
-
-    private byte[] extraerContenidoBloque(BufferedReader in) throws IOException {
-        List<String> partesBloque = new ArrayList<>();
-        int tamanoBloque = 0;
-
-        String linea = in.readLine(); // Avanzar una linea
-        while (!linea.startsWith(FIN_BLOQUE)) {
-            partesBloque.add(linea);
-            tamanoBloque += linea.length();
-            linea = in.readLine();
-        }
-
-        byte[] result = new byte[tamanoBloque];
-        int posicion = 0;
-        for (String parte : partesBloque) {
-            byte[] contenidoParte = parte.getBytes();
-            for (byte b : contenidoParte) {
-                result[posicion] = b;
-                posicion++;
-            }
+    public void escribirPaquete(OutputStream salida) throws IOException {
+        EscritorPaquete escritor = EscritorPaquete.crear(salida, this.formato);
+        for (String nombreBloque : this.getNombresBloque()) {
+            escritor.escribirBloque(nombreBloque, this.getContenidoBloque(nombreBloque));
         }
-        return Base64.getDecoder().decode(result);
+        escritor.close();
     }
 
     public static class Bloque {
@@ -0,0 +1,19 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.IOException;
+
+/**
+ * Paquete al que le faltan bloques o cuyas firmas no son validas.
+ */
+public class PaqueteInvalidoException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public PaqueteInvalidoException(String mensaje) {
+        super(mensaje);
+    }
+
+    public PaqueteInvalidoException(String mensaje, Throwable causa) {
+        super(mensaje, causa);
+    }
+}
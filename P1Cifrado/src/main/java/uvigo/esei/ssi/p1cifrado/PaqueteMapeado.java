@@ -0,0 +1,537 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vista de solo lectura de un paquete en fichero, con acceso directo a cada
+ * bloque.
+ *
+ * Al abrirlo solo se localizan los limites de los bloques (en formato binario
+ * con indice basta con leer el indice del final del fichero; en formato texto
+ * se recorre una vez el fichero mapeado en memoria buscando las cabeceras).
+ * El contenido de un bloque solo se lee y decodifica cuando se pide, de modo
+ * que consultar el sello o las firmas no obliga a cargar la factura cifrada.
+ *
+ * No es seguro usar una misma instancia desde varios hilos.
+ */
+public class PaqueteMapeado implements Closeable {
+
+    private static final long TAMANO_VENTANA = 64L * 1024 * 1024;
+
+    private final FileChannel canal;
+    private final boolean propioCanal;
+    private final long base;  // Posicion del paquete en el fichero (ver ArchivoPaquetes)
+    private final long tamano;
+    private final FormatoPaquete formato;
+    private final Map<String, Region> bloques = new HashMap<>();
+    private long posicionFin = -1;
+    private boolean conIndice;
+
+    private MappedByteBuffer ventana;
+    private ByteBuffer vistaVentana;  // Para leer por posicion relativa sin tocar la ventana
+    private long inicioVentana;
+
+    /**
+     * Si el paquete tiene un diario pendiente (un añadido de bloques que no
+     * llego a terminar, ver DiarioPaquete) se completa antes de leerlo.
+     */
+    public PaqueteMapeado(Path fichero) throws IOException {
+        this(FileChannel.open(fichero, StandardOpenOption.READ), true, 0, -1, fichero);
+    }
+
+    /*
+     * Paquete guardado en la region [base, base + tamano) de un fichero mayor;
+     * con tamano -1 ocupa el fichero entero.
+     */
+    PaqueteMapeado(Path fichero, long base, long tamano) throws IOException {
+        this(FileChannel.open(fichero, StandardOpenOption.READ), true, base, tamano, null);
+    }
+
+    /*
+     * Paquete leido a traves de un canal ya abierto, que no se cierra al
+     * cerrar el paquete (ver DiarioPaquete: cerrar otro canal del mismo
+     * fichero liberaria su bloqueo).
+     */
+    PaqueteMapeado(FileChannel canal) throws IOException {
+        this(canal, false, 0, -1, null);
+    }
+
+    /*
+     * Con paquete distinto de null, el indice se construye con el paquete
+     * bloqueado para lectura (ver DiarioPaquete.bloquearLectura): los bloques
+     * ya escritos no cambian al añadir otros, pero la marca de fin si.
+     */
+    private PaqueteMapeado(FileChannel canal, boolean propioCanal, long base, long tamano, Path paquete)
+            throws IOException {
+        this.canal = canal;
+        this.propioCanal = propioCanal;
+        DiarioPaquete.Cerrojo cerrojo = null;
+        FileLock bloqueo = null;
+        try {
+            if (paquete != null) {
+                cerrojo = DiarioPaquete.bloquear(paquete);
+                bloqueo = DiarioPaquete.bloquearLectura(paquete, canal);
+            }
+            this.base = base;
+            this.tamano = (tamano < 0) ? this.canal.size() : tamano;
+            byte[] inicio = new byte[FormatoPaquete.MAGIA_BINARIO.length];
+            int leidos = (int) Math.min(inicio.length, this.tamano);
+            this.copiar(0, inicio, 0, leidos);
+            this.formato = FormatoPaquete.detectar(inicio, leidos);
+            if (this.formato == FormatoPaquete.BINARIO) {
+                this.indexarBinario();
+            } else {
+                this.indexarTexto();
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (propioCanal) {
+                this.canal.close();
+            }
+            throw ex;
+        } finally {
+            if ((bloqueo != null) && bloqueo.isValid()) {
+                bloqueo.release();
+            }
+            if (cerrojo != null) {
+                cerrojo.liberar();
+            }
+        }
+    }
+
+    public FormatoPaquete getFormato() {
+        return this.formato;
+    }
+
+    public List<String> getNombresBloque() {
+        List<String> result = new ArrayList<>(this.bloques.keySet());
+        Collections.sort(result);
+        return result;
+    }
+
+    public boolean contieneBloque(String nombreBloque) {
+        return this.bloques.containsKey(Paquete.normalizarNombre(nombreBloque));
+    }
+
+    /**
+     * Tamaño que ocupa el contenido del bloque dentro del fichero (codificado),
+     * o -1 si el bloque no existe.
+     */
+    public long getTamanoBloque(String nombreBloque) {
+        Region region = this.bloques.get(Paquete.normalizarNombre(nombreBloque));
+        return (region == null) ? -1 : region.fin - region.inicio;
+    }
+
+    /**
+     * Lee y decodifica el contenido del bloque, o devuelve null si no existe.
+     */
+    public byte[] getContenidoBloque(String nombreBloque) throws IOException {
+        InputStream in = this.abrirBloque(nombreBloque);
+        return (in == null) ? null : in.readAllBytes();
+    }
+
+    /**
+     * Devuelve un stream con el contenido decodificado del bloque, o null si
+     * no existe. El contenido se va leyendo del fichero a medida que se consume.
+     */
+    public InputStream abrirBloque(String nombreBloque) throws IOException {
+        Region region = this.bloques.get(Paquete.normalizarNombre(nombreBloque));
+        if (region == null) {
+            return null;
+        }
+        if (this.formato == FormatoPaquete.BINARIO) {
+            return new LectorPaqueteBinario.EntradaTrozos(new DataInputStream(new EntradaRegion(region.inicio, region.fin)));
+        }
+        return new EntradaBase64(region.inicio, region.fin);
+    }
+
+    /**
+     * Como abrirBloque, pero empezando en esa posicion del contenido
+     * decodificado. La posicion en el fichero se calcula a partir del tamaño
+     * de trozo (binario) o del ancho de linea (texto), sin leer lo anterior;
+     * si el bloque no tiene la disposicion que escriben EscritorPaqueteBinario
+     * y EscritorPaqueteTexto se decodifica desde el principio.
+     */
+    InputStream abrirBloque(String nombreBloque, long desde) throws IOException {
+        Region region = this.bloques.get(Paquete.normalizarNombre(nombreBloque));
+        if ((region == null) || (desde == 0)) {
+            return this.abrirBloque(nombreBloque);
+        }
+        InputStream in = null;
+        long saltar = desde;
+        if (this.formato == FormatoPaquete.BINARIO) {
+            int tamanoTrozo = FormatoPaquete.TAMANO_TROZO;
+            long trozo = desde / tamanoTrozo;
+            long posicion = region.inicio + trozo * (tamanoTrozo + 4);
+            long numTrozos = (region.longitud + tamanoTrozo - 1) / tamanoTrozo;
+            if ((desde < region.longitud) && (region.fin == region.inicio + region.longitud + 4 * numTrozos + 4)
+                    && (this.leerInt(posicion) == Math.min(tamanoTrozo, region.longitud - trozo * tamanoTrozo))) {
+                in = new LectorPaqueteBinario.EntradaTrozos(new DataInputStream(new EntradaRegion(posicion, region.fin)));
+                saltar = desde % tamanoTrozo;
+            }
+        } else {
+            int ancho = Paquete.ANCHO_LINEA;
+            long caracter = (desde / 3) * 4;
+            long inicioLinea = region.inicio + (caracter / ancho) * (ancho + 1);
+            long posicion = inicioLinea + caracter % ancho;
+            if ((posicion < region.fin) && (this.leerByte(inicioLinea - 1) == '\n')
+                    && ((region.fin - region.inicio <= ancho) || (this.leerByte(region.inicio + ancho) == '\n'))) {
+                in = new EntradaBase64(posicion, region.fin);
+                saltar = desde % 3;
+            }
+        }
+        if (in == null) {
+            in = this.abrirBloque(nombreBloque);
+        }
+        in.skipNBytes(saltar);
+        return in;
+    }
+
+    /*
+     * Posicion donde termina el ultimo bloque: inicio de la linea FIN PAQUETE
+     * en formato texto, o de la marca de fin de bloques en formato binario.
+     */
+    long getPosicionFin() throws IOException {
+        if (this.posicionFin < 0) {
+            Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+            throw new PaqueteInvalidoException("Paquete sin marca de fin");
+        }
+        return this.posicionFin;
+    }
+
+    boolean tieneIndice() {
+        return this.conIndice;
+    }
+
+    /*
+     * Posicion y longitud (sin trozos) de cada bloque de un paquete binario.
+     */
+    Map<String, long[]> getIndiceBinario() {
+        Map<String, long[]> indice = new HashMap<>();
+        for (Map.Entry<String, Region> bloque : this.bloques.entrySet()) {
+            indice.put(bloque.getKey(), new long[]{bloque.getValue().inicio, bloque.getValue().longitud});
+        }
+        return indice;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.ventana = null;
+        this.vistaVentana = null;
+        if (this.propioCanal) {
+            this.canal.close();
+        }
+    }
+
+    /*
+     * Con indice: se lee el pie y el indice. Sin indice, o si el pie o el
+     * indice no son coherentes con el fichero (paquete truncado o con bytes
+     * añadidos al final), se recorren las cabeceras de bloque saltando los
+     * trozos por su longitud.
+     */
+    private void indexarBinario() throws IOException {
+        this.conIndice = (this.leerByte(5) & FormatoPaquete.CON_INDICE) != 0;
+        if (!this.conIndice || !this.leerIndice()) {
+            this.bloques.clear();
+            this.recorrerBinario();
+        }
+    }
+
+    private boolean leerIndice() throws IOException {
+        long pie = this.tamano - FormatoPaquete.TAMANO_PIE_BINARIO;
+        if (pie < FormatoPaquete.TAMANO_CABECERA_BINARIO + 2) {
+            return false;
+        }
+        byte[] magia = new byte[FormatoPaquete.MAGIA_INDICE.length];
+        this.copiar(pie + 8, magia, 0, magia.length);
+        long posicion = this.leerLong(pie);
+        if (!Arrays.equals(magia, FormatoPaquete.MAGIA_INDICE)
+                || (posicion < FormatoPaquete.TAMANO_CABECERA_BINARIO + 2) || (posicion + 4 > pie)) {
+            return false;
+        }
+        this.posicionFin = posicion - 2;
+        int numBloques = this.leerInt(posicion);
+        posicion += 4;
+        for (int i = 0; i < numBloques; i++) {
+            if (posicion + 2 > pie) {
+                return false;
+            }
+            int longitudNombre = this.leerShort(posicion);
+            if (posicion + 2 + longitudNombre + 16 > pie) {
+                return false;
+            }
+            String nombre = this.leerTexto(posicion + 2, longitudNombre);
+            posicion += 2 + longitudNombre;
+            long inicio = this.leerLong(posicion);
+            long longitud = this.leerLong(posicion + 8);
+            posicion += 16;
+            if ((inicio < FormatoPaquete.TAMANO_CABECERA_BINARIO) || (longitud < 0)
+                    || (longitud > this.posicionFin - inicio)) {
+                return false;
+            }
+            long numTrozos = (longitud + FormatoPaquete.TAMANO_TROZO - 1) / FormatoPaquete.TAMANO_TROZO;
+            long fin = inicio + longitud + 4 * numTrozos + 4;
+            if (fin > this.posicionFin) {
+                return false;
+            }
+            this.bloques.put(nombre, new Region(inicio, fin, longitud));
+        }
+        return posicion == pie;
+    }
+
+    private void recorrerBinario() throws IOException {
+        long posicion = FormatoPaquete.TAMANO_CABECERA_BINARIO;
+        int longitudNombre = this.leerShort(posicion);
+        while (longitudNombre != 0) {
+            String nombre = this.leerTexto(posicion + 2, longitudNombre);
+            posicion += 2 + longitudNombre;
+            long inicio = posicion;
+            long longitud = 0;
+            int longitudTrozo = this.leerInt(posicion);
+            while (longitudTrozo != 0) {
+                if (longitudTrozo < 0) {
+                    throw new PaqueteInvalidoException("Trozo de longitud negativa en el bloque " + nombre);
+                }
+                posicion += 4 + longitudTrozo;
+                longitud += longitudTrozo;
+                longitudTrozo = this.leerInt(posicion);
+            }
+            posicion += 4;
+            this.bloques.put(nombre, new Region(inicio, posicion, longitud));
+            longitudNombre = this.leerShort(posicion);
+        }
+        this.posicionFin = posicion;
+    }
+
+    /*
+     * Recorre el fichero buscando lineas que empiezan por '-' (ningun caracter
+     * BASE64 lo es), que son las cabeceras de inicio y fin de bloque.
+     */
+    private void indexarTexto() throws IOException {
+        String nombre = null;
+        long inicio = 0;
+        long posicion = 0;
+        while (posicion < this.tamano) {
+            if (this.leerByte(posicion) == '-') {
+                long finLinea = this.buscarFinLinea(posicion);
+                String linea = this.leerTexto(posicion, (int) (finLinea - posicion)).trim();
+                if (linea.startsWith(Paquete.INICIO_BLOQUE)) {
+                    nombre = Paquete.normalizarNombre(LectorPaqueteTexto.extraerNombreBloque(linea));
+                    inicio = finLinea + 1;
+                } else if (linea.startsWith(Paquete.FIN_BLOQUE) && (nombre != null)) {
+                    this.bloques.put(nombre, new Region(inicio, posicion, -1));
+                    nombre = null;
+                } else if (linea.equals(Paquete.FIN_PAQUETE)) {
+                    this.posicionFin = posicion;
+                    break;
+                }
+                posicion = finLinea + 1;
+            } else {
+                posicion = this.buscarFinLinea(posicion) + 1;
+            }
+        }
+    }
+
+    private long buscarFinLinea(long posicion) throws IOException {
+        while (posicion < this.tamano) {
+            MappedByteBuffer buffer = this.mapear(posicion);
+            int i = (int) (posicion - this.inicioVentana);
+            int limite = buffer.limit();
+            while (i < limite) {
+                if (buffer.get(i) == '\n') {
+                    return this.inicioVentana + i;
+                }
+                i++;
+            }
+            posicion = this.inicioVentana + limite;
+        }
+        return this.tamano;
+    }
+
+    private MappedByteBuffer mapear(long posicion) throws IOException {
+        if ((this.ventana == null) || (posicion < this.inicioVentana)
+                || (posicion >= this.inicioVentana + this.ventana.limit())) {
+            this.inicioVentana = posicion;
+            long longitud = Math.min(TAMANO_VENTANA, this.tamano - posicion);
+            this.ventana = this.canal.map(FileChannel.MapMode.READ_ONLY, this.base + posicion, longitud);
+            this.vistaVentana = this.ventana.duplicate();
+        }
+        return this.ventana;
+    }
+
+    private void copiar(long posicion, byte[] destino, int off, int len) throws IOException {
+        while (len > 0) {
+            MappedByteBuffer buffer = this.mapear(posicion);
+            int i = (int) (posicion - this.inicioVentana);
+            int n = Math.min(len, buffer.limit() - i);
+            buffer.get(i, destino, off, n);
+            posicion += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private byte leerByte(long posicion) throws IOException {
+        if (posicion >= this.tamano) {
+            throw new PaqueteInvalidoException("Paquete truncado");
+        }
+        return this.mapear(posicion).get((int) (posicion - this.inicioVentana));
+    }
+
+    private int leerShort(long posicion) throws IOException {
+        return ((this.leerByte(posicion) & 0xFF) << 8) | (this.leerByte(posicion + 1) & 0xFF);
+    }
+
+    private int leerInt(long posicion) throws IOException {
+        return (this.leerShort(posicion) << 16) | this.leerShort(posicion + 2);
+    }
+
+    private long leerLong(long posicion) throws IOException {
+        return ((long) this.leerInt(posicion) << 32) | (this.leerInt(posicion + 4) & 0xFFFFFFFFL);
+    }
+
+    private String leerTexto(long posicion, int longitud) throws IOException {
+        byte[] bytes = new byte[longitud];
+        this.copiar(posicion, bytes, 0, longitud);
+        return new String(bytes, Paquete.CHARSET);
+    }
+
+    private static class Region {
+
+        final long inicio;
+        final long fin;
+        final long longitud;  // Sin codificar; -1 si no se conoce
+
+        Region(long inicio, long fin, long longitud) {
+            this.inicio = inicio;
+            this.fin = fin;
+            this.longitud = longitud;
+        }
+    }
+
+    /*
+     * Bytes de [inicio, fin) del fichero, leidos a traves de la ventana mapeada.
+     */
+    private class EntradaRegion extends InputStream {
+
+        private long posicion;
+        private final long fin;
+
+        EntradaRegion(long inicio, long fin) {
+            this.posicion = inicio;
+            this.fin = fin;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.posicion >= this.fin) {
+                return -1;
+            }
+            return leerByte(this.posicion++) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] destino, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (this.posicion >= this.fin) {
+                return -1;
+            }
+            MappedByteBuffer buffer = mapear(this.posicion);
+            int i = (int) (this.posicion - inicioVentana);
+            int n = (int) Math.min(Math.min(len, this.fin - this.posicion), buffer.limit() - i);
+            buffer.get(i, destino, off, n);
+            this.posicion += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long saltar = Math.max(0, Math.min(n, this.fin - this.posicion));
+            this.posicion += saltar;
+            return saltar;
+        }
+    }
+
+    /*
+     * Contenido de un bloque de texto, decodificado directamente desde la
+     * ventana mapeada (los saltos de linea se saltan al decodificar).
+     */
+    private class EntradaBase64 extends InputStream {
+
+        private long posicion;
+        private final long fin;
+        private final CodecBase64.Decodificador decodificador = new CodecBase64.Decodificador();
+        private final byte[] unByte = new byte[1];
+        private boolean terminado;
+
+        EntradaBase64(long inicio, long fin) {
+            this.posicion = inicio;
+            this.fin = fin;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = this.read(this.unByte, 0, 1);
+            return (n < 0) ? -1 : (this.unByte[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] destino, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer salida = ByteBuffer.wrap(destino, off, len);
+            this.decodificador.vaciar(salida);
+            while (salida.hasRemaining() && (this.posicion < this.fin)) {
+                mapear(this.posicion);
+                int limite = (int) Math.min(ventana.limit(), this.fin - inicioVentana);
+                vistaVentana.limit(limite).position((int) (this.posicion - inicioVentana));
+                long inicio = Metricas.inicio();
+                this.decodificador.decodificar(vistaVentana, salida);
+                Metricas.fin(Metricas.Etapa.CODIFICACION, inicio, vistaVentana.position() - (this.posicion - inicioVentana));
+                this.posicion = inicioVentana + vistaVentana.position();
+            }
+            if ((this.posicion >= this.fin) && !this.terminado) {
+                this.terminado = true;
+                this.decodificador.terminar(salida);
+            }
+            int n = salida.position() - off;
+            return (n == 0) ? -1 : n;
+        }
+    }
+
+    /*
+     * Lista los bloques de uno o varios paquetes sin decodificar su contenido.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Uso: java PaqueteMapeado <paquete> [<paquete> ...]");
+            System.exit(1);
+        }
+        for (String nombrePaquete : args) {
+            try (PaqueteMapeado paquete = new PaqueteMapeado(Paths.get(nombrePaquete))) {
+                System.out.println(nombrePaquete + " (" + paquete.getFormato() + ")");
+                for (String nombreBloque : paquete.getNombresBloque()) {
+                    System.out.println("\t" + nombreBloque + ": " + paquete.getTamanoBloque(nombreBloque) + " bytes");
+                }
+            }
+        }
+    }
+}
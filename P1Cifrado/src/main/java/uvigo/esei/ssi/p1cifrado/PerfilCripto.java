@@ -0,0 +1,203 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Perfiles de algoritmos para firmar y para cifrar (envolver) la clave AES.
+ *
+ * RSA es el original: SHA256withRSA y RSA/ECB/PKCS1Padding con BC. EC usa
+ * ECDSA sobre P-256 y ED25519 usa firmas Ed25519; en ambos la clave AES se
+ * envuelve con una clave efimera de acuerdo (ECDH P-256 o X25519) contra la
+ * clave publica del destinatario: del secreto compartido se deriva con
+ * HKDF-SHA256 una clave con la que se envuelve la clave AES (AESWrap).
+ * <pre>
+ *   claveSimetricaCifrada (EC/ED25519): longitud (short) | clave publica efimera X.509 | clave AES envuelta
+ * </pre>
+ *
+ * El perfil se elige por el tipo de clave: el de firma por la clave del
+ * firmante y el de envoltura por la clave del destinatario. EmpaquetarFactura
+ * guarda ambos en el bloque perfil ("FIRMA/ENVOLTURA"); un paquete sin ese
+ * bloque es RSA/RSA.
+ */
+public enum PerfilCripto {
+
+    RSA("SHA256withRSA", "BC", null, null),
+    EC("SHA256withECDSA", "SunEC", "EC", "ECDH"),
+    ED25519("Ed25519", "SunEC", "X25519", "XDH");
+
+    static final String PROVIDER_ACUERDO = "SunEC";
+    private static final byte[] ETIQUETA_HKDF = "P1Cifrado envoltura clave AES".getBytes(StandardCharsets.UTF_8);
+    private static final int TAMANO_KEK = 16;
+
+    private final String algoritmoFirma;
+    private final String providerFirma;
+    private final String algoritmoClaveAcuerdo;
+    private final String algoritmoAcuerdo;
+
+    PerfilCripto(String algoritmoFirma, String providerFirma, String algoritmoClaveAcuerdo, String algoritmoAcuerdo) {
+        this.algoritmoFirma = algoritmoFirma;
+        this.providerFirma = providerFirma;
+        this.algoritmoClaveAcuerdo = algoritmoClaveAcuerdo;
+        this.algoritmoAcuerdo = algoritmoAcuerdo;
+    }
+
+    /**
+     * Perfil de firma que corresponde a una clave publica o privada.
+     */
+    public static PerfilCripto paraFirma(Key clave) throws InvalidKeyException {
+        switch (clave.getAlgorithm()) {
+            case "RSA":
+                return RSA;
+            case "EC":
+                return EC;
+            case "Ed25519":
+            case "EdDSA":
+                return ED25519;
+            default:
+                throw new InvalidKeyException("Tipo de clave no soportado para firmar: " + clave.getAlgorithm());
+        }
+    }
+
+    /**
+     * Perfil de envoltura de la clave AES que corresponde a la clave del destinatario.
+     */
+    public static PerfilCripto paraEnvoltura(Key clave) throws InvalidKeyException {
+        switch (clave.getAlgorithm()) {
+            case "RSA":
+                return RSA;
+            case "EC":
+                return EC;
+            case "X25519":
+            case "XDH":
+                return ED25519;
+            default:
+                throw new InvalidKeyException("Tipo de clave no soportado para cifrar la clave AES: " + clave.getAlgorithm());
+        }
+    }
+
+    static byte[] bloquePerfil(PerfilCripto firma, PerfilCripto envoltura) {
+        return (firma.name() + "/" + envoltura.name()).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Perfiles de firma y de envoltura guardados en el bloque perfil (RSA/RSA si no hay bloque).
+     */
+    static PerfilCripto[] leerBloquePerfil(byte[] bloque) throws PaqueteInvalidoException {
+        if (bloque == null) {
+            return new PerfilCripto[]{RSA, RSA};
+        }
+        String[] partes = new String(bloque, StandardCharsets.US_ASCII).trim().split("/");
+        try {
+            return new PerfilCripto[]{valueOf(partes[0]), valueOf(partes[partes.length - 1])};
+        } catch (IllegalArgumentException e) {
+            Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+            throw new PaqueteInvalidoException("Perfil criptografico desconocido: " + new String(bloque, StandardCharsets.US_ASCII));
+        }
+    }
+
+    public String getAlgoritmoFirma() {
+        return this.algoritmoFirma;
+    }
+
+    public Signature firmador(PrivateKey clave) throws GeneralSecurityException {
+        return ContextoCripto.firmador(this.algoritmoFirma, this.providerFirma, clave);
+    }
+
+    public Signature verificador(PublicKey clave) throws GeneralSecurityException {
+        return ContextoCripto.verificador(this.algoritmoFirma, this.providerFirma, clave);
+    }
+
+    /**
+     * Cifra la clave AES para el destinatario.
+     */
+    public byte[] envolverClave(SecretKey claveAES, PublicKey destinatario) throws GeneralSecurityException {
+        if (this == RSA) {
+            Cipher cipher = ContextoCripto.cifrador("RSA/ECB/PKCS1Padding", "BC", Cipher.ENCRYPT_MODE, destinatario);
+            return cipher.doFinal(claveAES.getEncoded());
+        }
+        KeyPairGenerator generador = KeyPairGenerator.getInstance(this.algoritmoClaveAcuerdo, PROVIDER_ACUERDO);
+        if (this == EC) {
+            generador.initialize(((ECPublicKey) destinatario).getParams());
+        } else {
+            generador.initialize(NamedParameterSpec.X25519);
+        }
+        KeyPair efimera = generador.generateKeyPair();
+        byte[] publicaEfimera = efimera.getPublic().getEncoded();
+
+        SecretKey kek = this.derivarKek(efimera.getPrivate(), destinatario, publicaEfimera);
+        Cipher cipher = ContextoCripto.cifrador("AESWrap", "SunJCE", Cipher.WRAP_MODE, kek);
+        byte[] envuelta = cipher.wrap(claveAES);
+
+        return ByteBuffer.allocate(2 + publicaEfimera.length + envuelta.length)
+                .putShort((short) publicaEfimera.length).put(publicaEfimera).put(envuelta).array();
+    }
+
+    /**
+     * Recupera la clave AES con la clave privada del destinatario.
+     */
+    public SecretKey desenvolverClave(byte[] claveCifrada, PrivateKey destinatario) throws GeneralSecurityException {
+        if (this == RSA) {
+            Cipher cipher = ContextoCripto.cifrador("RSA/ECB/PKCS1Padding", "BC", Cipher.DECRYPT_MODE, destinatario);
+            byte[] clave = cipher.doFinal(claveCifrada);
+            // El relleno PKCS#1 v1.5 no detecta siempre una clave privada equivocada
+            if ((clave.length != 16) && (clave.length != 24) && (clave.length != 32)) {
+                throw new InvalidKeyException("Clave simetrica cifrada no valida");
+            }
+            return new SecretKeySpec(clave, "AES");
+        }
+        ByteBuffer contenido = ByteBuffer.wrap(claveCifrada);
+        int longitud = contenido.getShort() & 0xFFFF;
+        if (longitud > contenido.remaining()) {
+            throw new InvalidKeyException("Clave simetrica cifrada no valida");
+        }
+        byte[] publicaEfimera = new byte[longitud];
+        contenido.get(publicaEfimera);
+        byte[] envuelta = new byte[contenido.remaining()];
+        contenido.get(envuelta);
+
+        PublicKey efimera = ContextoCripto.factoriaClaves(this.algoritmoClaveAcuerdo, PROVIDER_ACUERDO)
+                .generatePublic(new X509EncodedKeySpec(publicaEfimera));
+        SecretKey kek = this.derivarKek(destinatario, efimera, publicaEfimera);
+        Cipher cipher = ContextoCripto.cifrador("AESWrap", "SunJCE", Cipher.UNWRAP_MODE, kek);
+        return (SecretKey) cipher.unwrap(envuelta, "AES", Cipher.SECRET_KEY);
+    }
+
+    /*
+     * HKDF-SHA256 (RFC 5869) del secreto compartido, con la clave publica
+     * efimera en la informacion para ligar la clave derivada a esta envoltura.
+     */
+    private SecretKey derivarKek(PrivateKey privada, PublicKey publica, byte[] publicaEfimera)
+            throws GeneralSecurityException {
+        KeyAgreement acuerdo = KeyAgreement.getInstance(this.algoritmoAcuerdo, PROVIDER_ACUERDO);
+        acuerdo.init(privada);
+        acuerdo.doPhase(publica, true);
+        byte[] secreto = acuerdo.generateSecret();
+
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(new byte[32], "HmacSHA256"));
+        byte[] prk = hmac.doFinal(secreto);
+        hmac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        hmac.update(ETIQUETA_HKDF);
+        hmac.update(publicaEfimera);
+        hmac.update((byte) 1);
+        byte[] okm = hmac.doFinal();
+        return new SecretKeySpec(okm, 0, TAMANO_KEK, "AES");
+    }
+}
@@ -0,0 +1,294 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Procesa en una sola ejecucion todas las facturas (o paquetes) de un
+ * directorio o de un fichero manifiesto (una ruta por linea). Las claves y el
+ * provider se cargan una unica vez y los ficheros se reparten entre un numero
+ * configurable de hilos virtuales con una cola acotada.
+ */
+public class ProcesarLote {
+
+    public static void main(String[] args) {
+        if ((args.length > 0) && args[0].equals("completo")) {
+            completo(args);
+            return;
+        }
+        if (args.length < 5 || args.length > 9) {
+            mensajeAyuda();
+            System.exit(1);
+        }
+
+        ContextoCripto.registrarProvider();
+        String operacion = args[0];
+        Path entrada = Paths.get(args[1]);
+        Path directorioSalida = Paths.get(args[2]);
+        int hilos = (args.length >= 6) ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+        FormatoPaquete formato = (args.length >= 7) ? FormatoPaquete.deNombre(args[6]) : FormatoPaquete.TEXTO;
+        ModoCifrado modo = (args.length >= 8) ? ModoCifrado.deNombre(args[7]) : ModoCifrado.CLASICO;
+        Compresion compresion = (args.length == 9) ? Compresion.deNombre(args[8]) : Compresion.NINGUNA;
+
+        try {
+            if (operacion.equals("verificar")) {
+                verificar(entrada, directorioSalida, args[3], args[4], hilos);
+                return;
+            }
+
+            long inicio = System.nanoTime();
+            Tarea tarea = crearTarea(operacion, args[3], args[4], formato, modo, compresion);
+            long tiempoClaves = System.nanoTime() - inicio;
+
+            List<Path> ficheros = listarEntrada(entrada);
+            Files.createDirectories(directorioSalida);
+
+            inicio = System.nanoTime();
+            Resultado resultado = procesar(ficheros, directorioSalida, tarea, hilos);
+            long tiempoProceso = System.nanoTime() - inicio;
+
+            System.out.printf("Carga de claves: %.1f ms%n", tiempoClaves / 1e6);
+            informar(operacion, resultado, tiempoProceso);
+        } catch (Exception e) {
+            System.err.println("Error al procesar el lote");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /*
+     * Empaqueta, sella y desempaqueta el lote completo, una etapa detras de
+     * otra, e informa del rendimiento de cada etapa por separado. Los paquetes
+     * quedan en <salida>/paquetes y las facturas recuperadas en
+     * <salida>/facturas.
+     */
+    private static void completo(String[] args) {
+        if (args.length < 9 || args.length > 10) {
+            mensajeAyuda();
+            System.exit(1);
+        }
+
+        ContextoCripto.registrarProvider();
+        Path entrada = Paths.get(args[1]);
+        Path directorioPaquetes = Paths.get(args[2]).resolve("paquetes");
+        Path directorioFacturas = Paths.get(args[2]).resolve("facturas");
+        int hilos = (args.length == 10) ? Integer.parseInt(args[9]) : Runtime.getRuntime().availableProcessors();
+
+        try {
+            long inicio = System.nanoTime();
+            Tarea empaquetar = crearTarea("empaquetar", args[3], args[4], FormatoPaquete.TEXTO);
+            Tarea sellar = crearTarea("sellar", args[5], args[6], FormatoPaquete.TEXTO);
+            Tarea desempaquetar = crearTarea("desempaquetar", args[7], args[8], FormatoPaquete.TEXTO);
+            long tiempoClaves = System.nanoTime() - inicio;
+
+            List<Path> facturas = listarEntrada(entrada);
+            Files.createDirectories(directorioPaquetes);
+            Files.createDirectories(directorioFacturas);
+            System.out.printf("Carga de claves: %.1f ms%n", tiempoClaves / 1e6);
+
+            inicio = System.nanoTime();
+            informar("empaquetar", procesar(facturas, directorioPaquetes, empaquetar, hilos), System.nanoTime() - inicio);
+
+            List<Path> paquetes = new ArrayList<>(facturas.size());
+            for (Path factura : facturas) {
+                Path paquete = directorioPaquetes.resolve(factura.getFileName() + ".paquete");
+                if (Files.exists(paquete)) {
+                    paquetes.add(paquete);
+                }
+            }
+            inicio = System.nanoTime();
+            informar("sellar", procesar(paquetes, directorioPaquetes, sellar, hilos), System.nanoTime() - inicio);
+
+            inicio = System.nanoTime();
+            informar("desempaquetar", procesar(paquetes, directorioFacturas, desempaquetar, hilos),
+                    System.nanoTime() - inicio);
+        } catch (Exception e) {
+            System.err.println("Error al procesar el lote");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void informar(String operacion, Resultado resultado, long tiempoProceso) {
+        System.out.printf("%s: %d ficheros correctos, %d con error en %.2f s (%.1f ficheros/s, %.2f MB/s)%n",
+                operacion, resultado.correctos.get(), resultado.errores.get(), tiempoProceso / 1e9,
+                resultado.correctos.get() / (tiempoProceso / 1e9),
+                resultado.bytes.get() / (1024.0 * 1024.0) / (tiempoProceso / 1e9));
+    }
+
+    /**
+     * Operacion a aplicar a cada fichero del lote, con las claves ya cargadas.
+     */
+    public interface Tarea {
+
+        void procesar(Path fichero, Path directorioSalida) throws Exception;
+    }
+
+    public static class Resultado {
+
+        public final AtomicInteger correctos = new AtomicInteger();
+        public final AtomicInteger errores = new AtomicInteger();
+        public final AtomicLong bytes = new AtomicLong();
+    }
+
+    public static Tarea crearTarea(String operacion, String clave1, String clave2, FormatoPaquete formato)
+            throws Exception {
+        return crearTarea(operacion, clave1, clave2, formato, ModoCifrado.CLASICO);
+    }
+
+    public static Tarea crearTarea(String operacion, String clave1, String clave2, FormatoPaquete formato,
+                                   ModoCifrado modo) throws Exception {
+        return crearTarea(operacion, clave1, clave2, formato, modo, Compresion.NINGUNA);
+    }
+
+    /**
+     * El formato, el modo de cifrado y la compresion solo se usan al
+     * empaquetar; al sellar y desempaquetar se detectan en cada paquete.
+     */
+    public static Tarea crearTarea(String operacion, String clave1, String clave2, FormatoPaquete formato,
+                                   ModoCifrado modo, Compresion compresion) throws Exception {
+        switch (operacion) {
+            case "empaquetar": {
+                List<PublicKey> destinatarios = AlmacenClaves.compartido().clavesPublicas(clave1);
+                PrivateKey privateKeyEmpresa = AlmacenClaves.compartido().clavePrivada(clave2);
+                return (fichero, salida) -> EmpaquetarFactura.empaquetar(fichero,
+                        salida.resolve(fichero.getFileName() + ".paquete"), destinatarios, privateKeyEmpresa, formato, modo, compresion);
+            }
+            case "sellar": {
+                PublicKey publicKeyEmpresa = AlmacenClaves.compartido().clavePublica(clave1);
+                PrivateKey privateKeyAutoridad = AlmacenClaves.compartido().clavePrivada(clave2);
+                return (fichero, salida) -> SellarFactura.sellar(fichero,
+                        salida.resolve(fichero.getFileName()), publicKeyEmpresa, privateKeyAutoridad);
+            }
+            case "desempaquetar": {
+                PrivateKey privateKeyHacienda = AlmacenClaves.compartido().clavePrivada(clave1);
+                PublicKey publicKeyAutoridad = AlmacenClaves.compartido().clavePublica(clave2);
+                return (fichero, salida) -> DesempaquetarFactura.desempaquetar(fichero,
+                        salida.resolve(nombreFactura(fichero)), privateKeyHacienda, publicKeyAutoridad);
+            }
+            default:
+                throw new IllegalArgumentException("Operacion desconocida: " + operacion);
+        }
+    }
+
+    /**
+     * Aplica la tarea a todos los ficheros usando el numero de hilos indicado.
+     * La cola de trabajos esta acotada, de modo que si los hilos no dan abasto
+     * es el propio hilo que reparte el trabajo quien procesa el fichero.
+     */
+    public static Resultado procesar(List<Path> ficheros, Path directorioSalida, Tarea tarea, int hilos)
+            throws InterruptedException {
+        Resultado resultado = new Resultado();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(hilos, hilos, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(hilos * 4), Thread.ofVirtual().name("lote-", 0).factory(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        for (Path fichero : ficheros) {
+            pool.execute(() -> {
+                try {
+                    tarea.procesar(fichero, directorioSalida);
+                    resultado.bytes.addAndGet(Files.size(fichero));
+                    resultado.correctos.incrementAndGet();
+                } catch (Exception e) {
+                    if (!(e instanceof PaqueteInvalidoException)) {
+                        Metricas.fallo(Metricas.Fallo.OTRO);
+                    }
+                    resultado.errores.incrementAndGet();
+                    System.err.println("Error procesando " + fichero + ": " + e);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        return resultado;
+    }
+
+    /*
+     * Comprueba firmaEmpresa y firmaAutoridad de todos los paquetes con
+     * VerificadorFirmas y escribe el resultado de cada uno en
+     * verificacion.txt del directorio de salida.
+     */
+    private static void verificar(Path entrada, Path directorioSalida, String claveEmpresa, String claveAutoridad,
+                                  int hilos) throws Exception {
+        long inicio = System.nanoTime();
+        PublicKey publicKeyEmpresa = AlmacenClaves.compartido().clavePublica(claveEmpresa);
+        PublicKey publicKeyAutoridad = AlmacenClaves.compartido().clavePublica(claveAutoridad);
+        long tiempoClaves = System.nanoTime() - inicio;
+
+        List<Path> ficheros = listarEntrada(entrada);
+        Files.createDirectories(directorioSalida);
+
+        inicio = System.nanoTime();
+        List<VerificadorFirmas.Resultado> resultados;
+        try (VerificadorFirmas verificador = new VerificadorFirmas(hilos)) {
+            resultados = verificador.verificarPaquetes(ficheros, publicKeyEmpresa, publicKeyAutoridad);
+        }
+        long tiempoProceso = System.nanoTime() - inicio;
+
+        List<String> informe = new ArrayList<>(resultados.size());
+        int validos = 0;
+        for (VerificadorFirmas.Resultado resultado : resultados) {
+            if (resultado.valido) {
+                validos++;
+                informe.add(resultado.paquete + ": correcto");
+            } else {
+                informe.add(resultado.paquete + ": " + resultado.motivo);
+                System.err.println("Paquete no valido " + resultado.paquete + ": " + resultado.motivo);
+            }
+        }
+        Files.write(directorioSalida.resolve("verificacion.txt"), informe);
+
+        System.out.printf("Carga de claves: %.1f ms%n", tiempoClaves / 1e6);
+        System.out.printf("verificar: %d paquetes correctos, %d no validos en %.2f s (%.1f paquetes/s)%n",
+                validos, resultados.size() - validos, tiempoProceso / 1e9, resultados.size() / (tiempoProceso / 1e9));
+    }
+
+    private static String nombreFactura(Path paquete) {
+        String nombre = paquete.getFileName().toString();
+        if (nombre.endsWith(".paquete")) {
+            return nombre.substring(0, nombre.length() - ".paquete".length());
+        }
+        return nombre + ".json";
+    }
+
+    /*
+     * Un directorio aporta todos sus ficheros; cualquier otro fichero se trata
+     * como manifiesto con una ruta por linea (relativa al propio manifiesto).
+     */
+    private static List<Path> listarEntrada(Path entrada) throws IOException {
+        List<Path> ficheros = new ArrayList<>();
+        if (Files.isDirectory(entrada)) {
+            try (Stream<Path> contenido = Files.list(entrada)) {
+                contenido.filter(Files::isRegularFile).sorted().forEach(ficheros::add);
+            }
+        } else {
+            Path base = entrada.toAbsolutePath().getParent();
+            for (String linea : Files.readAllLines(entrada)) {
+                if (!linea.isBlank()) {
+                    ficheros.add(base.resolve(linea.trim()));
+                }
+            }
+        }
+        return ficheros;
+    }
+
+    public static void mensajeAyuda() {
+        System.out.println("Procesado por lotes de facturas");
+        System.out.println("\tSintaxis:   java ProcesarLote empaquetar <directorio o manifiesto> <directorio salida> <clave publica Hacienda>[,<clave publica otro destinatario>...] <clave privada Empresa> [hilos] [texto|binario] [clasico|resumen|segmentado] [ninguna|deflate]");
+        System.out.println("\t            java ProcesarLote sellar <directorio o manifiesto> <directorio salida> <clave publica Empresa> <clave privada Autoridad> [hilos]");
+        System.out.println("\t            java ProcesarLote verificar <directorio o manifiesto> <directorio salida> <clave publica Empresa> <clave publica Autoridad> [hilos]");
+        System.out.println("\t            java ProcesarLote desempaquetar <directorio o manifiesto> <directorio salida> <clave privada Hacienda> <clave publica Autoridad> [hilos]");
+        System.out.println("\t            java ProcesarLote completo <directorio o manifiesto> <directorio salida> <clave publica Hacienda> <clave privada Empresa> <clave publica Empresa> <clave privada Autoridad> <clave privada Hacienda> <clave publica Autoridad> [hilos]");
+        System.out.println();
+    }
+}
@@ -0,0 +1,86 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.Closeable;
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reserva de pares de claves generados en segundo plano, para que un servicio
+ * en marcha pueda obtener un par al instante en lugar de esperar a generarlo
+ * (segundos con RSA de 3072 o 4096 bits). Los hilos generadores rellenan la
+ * reserva hasta su capacidad; si esta vacia, obtener() genera el par en el
+ * hilo que lo pide. Si la generacion falla en segundo plano, el generador lo
+ * registra y espera cada vez mas (hasta ESPERA_MAXIMA_MS) antes de reintentar.
+ */
+public class ReservaClaves implements Closeable {
+
+    private static final long ESPERA_INICIAL_MS = 1000;
+    private static final long ESPERA_MAXIMA_MS = 60_000;
+
+    private final TipoClave tipo;
+    private final BlockingQueue<KeyPair> reserva;
+    private final Thread[] generadores;
+    private volatile boolean cerrada;
+
+    public ReservaClaves(TipoClave tipo, int capacidad, int hilos) {
+        this.tipo = tipo;
+        this.reserva = new ArrayBlockingQueue<>(capacidad);
+        this.generadores = new Thread[hilos];
+        for (int i = 0; i < hilos; i++) {
+            this.generadores[i] = Thread.ofPlatform().name("reserva-claves-", i).daemon()
+                    .priority(Thread.MIN_PRIORITY).start(this::rellenar);
+        }
+    }
+
+    public TipoClave getTipo() {
+        return this.tipo;
+    }
+
+    /**
+     * Numero de pares disponibles en este momento.
+     */
+    public int disponibles() {
+        return this.reserva.size();
+    }
+
+    public KeyPair obtener() {
+        KeyPair par = this.reserva.poll();
+        return (par != null) ? par : GeneradorClaves.generarPar(this.tipo);
+    }
+
+    @Override
+    public void close() {
+        this.cerrada = true;
+        for (Thread generador : this.generadores) {
+            generador.interrupt();
+        }
+    }
+
+    private void rellenar() {
+        long espera = ESPERA_INICIAL_MS;
+        try {
+            while (!this.cerrada) {
+                KeyPair par;
+                try {
+                    par = GeneradorClaves.generarPar(this.tipo);
+                    espera = ESPERA_INICIAL_MS;
+                } catch (IllegalStateException e) {
+                    System.err.println("Error al generar un par de claves " + this.tipo + " para la reserva (se reintenta en "
+                                       + espera + " ms): " + e.getCause());
+                    Thread.sleep(espera);
+                    espera = Math.min(2 * espera, ESPERA_MAXIMA_MS);
+                    continue;
+                }
+                while (!this.reserva.offer(par, 1, TimeUnit.SECONDS)) {
+                    if (this.cerrada) {
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Reserva cerrada
+        }
+    }
+}
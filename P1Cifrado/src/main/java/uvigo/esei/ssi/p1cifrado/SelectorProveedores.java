@@ -0,0 +1,153 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Eleccion del provider de los algoritmos simetricos.
+ *
+ * Los paquetes se han cifrado siempre con AES de BC, pero SunJCE usa las
+ * instrucciones AES del procesador y es varias veces mas rapido. Para cada
+ * algoritmo hay una lista de candidatos; el primero es la referencia (con el
+ * que estan cifrados los paquetes existentes). Un candidato solo se acepta si
+ * cifra un vector de prueba exactamente igual que la referencia y descifra lo
+ * que cifra la referencia.
+ *
+ * Con -Dp1cifrado.proveedor.ALGORITMO=provider se fija el provider de un
+ * algoritmo (por ejemplo -Dp1cifrado.proveedor.AES=SunJCE); si no, la primera
+ * vez que se pide un algoritmo se mide durante unos milisegundos cada
+ * candidato compatible y se elige el mas rapido. Con
+ * -Dp1cifrado.proveedores=referencia se usa siempre la referencia.
+ */
+final class SelectorProveedores {
+
+    private static final Map<String, String[]> CANDIDATOS = new LinkedHashMap<>();
+
+    static {
+        CANDIDATOS.put("AES", new String[] {"BC", "SunJCE"});
+    }
+
+    private static final byte[] CLAVE_PRUEBA = new byte[16];
+    private static final int TAMANO_PRUEBA = 1000;  // No multiplo del bloque, para probar el relleno
+    private static final int TAMANO_MEDIDA = 64 * 1024;
+    private static final long TIEMPO_MEDIDA = 30_000_000L;  // ns por candidato
+
+    private static final Map<String, String> ELEGIDOS = new ConcurrentHashMap<>();
+
+    private SelectorProveedores() {
+    }
+
+    /**
+     * Provider con el que usar el algoritmo (transformacion de Cipher o
+     * algoritmo de KeyGenerator).
+     */
+    static String proveedor(String algoritmo) {
+        return ELEGIDOS.computeIfAbsent(algoritmo, SelectorProveedores::elegir);
+    }
+
+    /**
+     * Providers elegidos hasta ahora, por algoritmo.
+     */
+    static Map<String, String> elegidos() {
+        return new LinkedHashMap<>(ELEGIDOS);
+    }
+
+    private static String elegir(String algoritmo) {
+        ContextoCripto.registrarProvider();
+        String[] candidatos = CANDIDATOS.get(algoritmo);
+        if (candidatos == null) {
+            throw new IllegalArgumentException("Algoritmo sin candidatos de provider: " + algoritmo);
+        }
+        String referencia = candidatos[0];
+
+        String configurado = System.getProperty("p1cifrado.proveedor." + algoritmo);
+        if (configurado != null) {
+            if (compatible(algoritmo, referencia, configurado)) {
+                return configurado;
+            }
+            System.err.println("El provider " + configurado + " no esta disponible o no es compatible con "
+                    + referencia + " para " + algoritmo + "; se usa " + referencia);
+            return referencia;
+        }
+        if ("referencia".equals(System.getProperty("p1cifrado.proveedores"))) {
+            return referencia;
+        }
+
+        String mejor = referencia;
+        long mejorTiempo = Long.MAX_VALUE;
+        for (String candidato : candidatos) {
+            if (!compatible(algoritmo, referencia, candidato)) {
+                continue;
+            }
+            try {
+                long tiempo = medir(algoritmo, candidato);
+                if (tiempo < mejorTiempo) {
+                    mejor = candidato;
+                    mejorTiempo = tiempo;
+                }
+            } catch (GeneralSecurityException e) {
+                // Se queda con los demas candidatos
+            }
+        }
+        return mejor;
+    }
+
+    /*
+     * Comprueba con un vector de prueba que el candidato produce los mismos
+     * bytes que la referencia en los dos sentidos.
+     */
+    private static boolean compatible(String algoritmo, String referencia, String candidato) {
+        if (Security.getProvider(candidato) == null) {
+            return false;
+        }
+        if (candidato.equals(referencia)) {
+            return true;
+        }
+        try {
+            SecretKey clave = new SecretKeySpec(CLAVE_PRUEBA, algoritmo);
+            byte[] datos = new byte[TAMANO_PRUEBA];
+            for (int i = 0; i < datos.length; i++) {
+                datos[i] = (byte) (i * 31 + 7);
+            }
+            Cipher cifradoReferencia = Cipher.getInstance(algoritmo, referencia);
+            cifradoReferencia.init(Cipher.ENCRYPT_MODE, clave);
+            byte[] esperado = cifradoReferencia.doFinal(datos);
+
+            Cipher cipher = Cipher.getInstance(algoritmo, candidato);
+            cipher.init(Cipher.ENCRYPT_MODE, clave);
+            if (!Arrays.equals(esperado, cipher.doFinal(datos))) {
+                return false;
+            }
+            cipher.init(Cipher.DECRYPT_MODE, clave);
+            return Arrays.equals(datos, cipher.doFinal(esperado));
+        } catch (GeneralSecurityException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Mejor tiempo de cifrar TAMANO_MEDIDA bytes durante TIEMPO_MEDIDA; el
+     * minimo descarta las vueltas en que aun no se habia compilado el codigo.
+     */
+    private static long medir(String algoritmo, String candidato) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(algoritmo, candidato);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(CLAVE_PRUEBA, algoritmo));
+        byte[] datos = new byte[TAMANO_MEDIDA];
+        byte[] cifrado = new byte[cipher.getOutputSize(TAMANO_MEDIDA)];
+        long mejor = Long.MAX_VALUE;
+        long fin = System.nanoTime() + TIEMPO_MEDIDA;
+        while (System.nanoTime() < fin) {
+            long inicio = System.nanoTime();
+            cipher.update(datos, 0, datos.length, cifrado, 0);
+            mejor = Math.min(mejor, System.nanoTime() - inicio);
+        }
+        return mejor;
+    }
+}
@@ -1,12 +1,12 @@
 package uvigo.esei.ssi.p1cifrado;
 
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.*;
 import java.util.Date;
-import java.security.spec.X509EncodedKeySpec;
-import java.security.spec.PKCS8EncodedKeySpec;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 public class SellarFactura {
     public static void main(String[] args) {
@@ -15,67 +15,158 @@ public class SellarFactura {
             System.exit(1);
         }
 
-        Security.addProvider(new BouncyCastleProvider());
+        ContextoCripto.registrarProvider();
         String nombrePaquete = args[0];
         String clavePublicaEmpresa = args[1];
         String clavePrivadaAutoridad = args[2];
 
         try {
-            PublicKey publicKeyEmpresa = cargarClavePublica(clavePublicaEmpresa);
-            PrivateKey privateKeyAutoridad = cargarClavePrivada(clavePrivadaAutoridad);
+            PublicKey publicKeyEmpresa = AlmacenClaves.compartido().clavePublica(clavePublicaEmpresa);
+            PrivateKey privateKeyAutoridad = AlmacenClaves.compartido().clavePrivada(clavePrivadaAutoridad);
 
-            Paquete paquete = new Paquete(nombrePaquete);
-            byte[] contenidoCifrado = paquete.getContenidoBloque("facturaCifrada");
-            byte[] firmaEmpresa = paquete.getContenidoBloque("firmaEmpresa");
-
-            if (contenidoCifrado == null || firmaEmpresa == null) {
-                System.out.println("Error: Bloques necesarios no encontrados en el paquete");
-                System.exit(1);
-            }
-
-            if (!verificarFirma(publicKeyEmpresa, contenidoCifrado, firmaEmpresa)) {
-                System.out.println("Firma de la empresa no coincide. Fin del programa.");
-                System.exit(1);
-            }
-
-            byte[] selloTiempo = new Date().toString().getBytes();
-            byte[] firmaAutoridad = firmarDatos(privateKeyAutoridad, selloTiempo);
-
-            paquete.anadirBloque("selloTiempo", selloTiempo);
-            paquete.anadirBloque("firmaAutoridad", firmaAutoridad);
-            paquete.escribirPaquete(nombrePaquete);
+            sellar(Paths.get(nombrePaquete), Paths.get(nombrePaquete), publicKeyEmpresa, privateKeyAutoridad);
 
             System.out.println("Factura sellada exitosamente.");
 
+        } catch (PaqueteInvalidoException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
         } catch (Exception e) {
            System.err.println("Error al sellar la factura");
            e.printStackTrace();
         }
     }
 
-    private static PublicKey cargarClavePublica(String path) throws Exception {
-        byte[] keyBytes = Files.readAllBytes(Paths.get(path));
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA", "BC");
-        return keyFactory.generatePublic(new X509EncodedKeySpec(keyBytes));
+    /**
+     * Verifica la firma de la empresa y añade el sello de tiempo firmado por la
+     * Autoridad. El paquete sellado se escribe en destino (puede ser el mismo
+     * fichero que el origen). Los bloques del sello se añaden al final del
+     * paquete sin reescribir la factura cifrada.
+     */
+    public static void sellar(Path origen, Path destino,
+                              PublicKey publicKeyEmpresa, PrivateKey privateKeyAutoridad) throws Exception {
+        long inicio = Metricas.inicio();
+        comprobarFirmaEmpresa(origen, publicKeyEmpresa);
+
+        byte[] selloTiempo = new Date().toString().getBytes();
+        byte[] firmaAutoridad = firmarDatos(privateKeyAutoridad, selloTiempo);
+
+        Paquete sello = new Paquete();
+        sello.anadirBloque("selloTiempo", selloTiempo);
+        sello.anadirBloque("firmaAutoridad", firmaAutoridad);
+        anadirSello(origen, destino, sello);
+        Metricas.fin(Metricas.Etapa.SELLADO, inicio, destino);
     }
 
-    private static PrivateKey cargarClavePrivada(String path) throws Exception {
-        byte[] keyBytes = Files.readAllBytes(Paths.get(path));
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA", "BC");
-        return keyFactory.generatePrivate(new PKCS8EncodedKeySpec(keyBytes));
+    /**
+     * Comprueba la firma de la empresa del paquete y la devuelve.
+     */
+    static byte[] comprobarFirmaEmpresa(Path origen, PublicKey publicKeyEmpresa) throws Exception {
+        try (PaqueteMapeado paquete = new PaqueteMapeado(origen)) {
+            byte[] firmaEmpresa = paquete.getContenidoBloque("firmaEmpresa");
+
+            if (!paquete.contieneBloque("facturaCifrada") || firmaEmpresa == null) {
+                Metricas.fallo(Metricas.Fallo.BLOQUE_AUSENTE);
+                throw new PaqueteInvalidoException("Error: Bloques necesarios no encontrados en el paquete");
+            }
+
+            PerfilCripto perfilFirma = PerfilCripto.leerBloquePerfil(paquete.getContenidoBloque("perfil"))[0];
+            if (perfilFirma != PerfilCripto.paraFirma(publicKeyEmpresa)) {
+                Metricas.fallo(Metricas.Fallo.PERFIL_INCOMPATIBLE);
+                throw new PaqueteInvalidoException("El paquete esta firmado con el perfil " + perfilFirma
+                        + " y la clave publica de la empresa es " + publicKeyEmpresa.getAlgorithm());
+            }
+
+            boolean firmaValida;
+            byte[] tablaSegmentos = paquete.getContenidoBloque("tablaSegmentos");
+            if (tablaSegmentos != null) {
+                // Modo segmentado: la firma cubre la tabla con las etiquetas GCM de los segmentos
+                // (la correspondencia entre segmentos y etiquetas solo se puede comprobar con la clave AES)
+                CifradoSegmentado.TablaSegmentos.decodificar(tablaSegmentos);
+                firmaValida = verificarFirma(publicKeyEmpresa, tablaSegmentos, firmaEmpresa);
+            } else if (paquete.contieneBloque("resumenFactura")) {
+                // La firma cubre el resumen de la factura cifrada: no hace falta leerla
+                byte[] resumenFactura = paquete.getContenidoBloque("resumenFactura");
+                firmaValida = verificarFirma(publicKeyEmpresa, resumenFactura, firmaEmpresa);
+            } else {
+                // Paquete sin resumen: la firma es sobre la factura cifrada completa
+                try (InputStream contenidoCifrado = paquete.abrirBloque("facturaCifrada")) {
+                    firmaValida = verificarFirma(publicKeyEmpresa, contenidoCifrado, firmaEmpresa);
+                }
+            }
+            if (!firmaValida) {
+                Metricas.fallo(Metricas.Fallo.FIRMA_NO_VALIDA);
+                throw new PaqueteInvalidoException("Firma de la empresa no coincide. Fin del programa.");
+            }
+            return firmaEmpresa;
+        }
+    }
+
+    /*
+     * Añade los bloques del sello al final del paquete de destino, copiando
+     * antes el origen si es otro fichero. La copia y el añadido se hacen con
+     * el destino bloqueado, de modo que dos sellados del mismo paquete en
+     * este proceso (una ruta repetida en un lote) se hacen uno detras de otro.
+     */
+    static void anadirSello(Path origen, Path destino, Paquete sello) throws Exception {
+        DiarioPaquete.Cerrojo cerrojo = DiarioPaquete.bloquear(destino);
+        try {
+            if (!Files.exists(destino) || !Files.isSameFile(origen, destino)) {
+                Files.copy(origen, destino, StandardCopyOption.REPLACE_EXISTING);
+            }
+            sello.anadirAFichero(destino);
+        } finally {
+            cerrojo.liberar();
+        }
     }
 
+    /**
+     * Verifica la firma leyendo el contenido firmado por trozos.
+     */
+    public static Boolean verificarFirma(PublicKey clave, InputStream contenido, byte[] firma) throws Exception {
+        long inicio = Metricas.inicio();
+        long bytes = 0;
+        Signature sig = PerfilCripto.paraFirma(clave).verificador(clave);
+        byte[] buffer = new byte[EmpaquetarFactura.TAMANO_BUFFER];
+        int leidos = contenido.read(buffer);
+        while (leidos >= 0) {
+            sig.update(buffer, 0, leidos);
+            bytes += leidos;
+            leidos = contenido.read(buffer);
+        }
+        boolean result = sig.verify(firma);
+        Metricas.fin(Metricas.Etapa.VERIFICACION, inicio, bytes);
+        return result;
+    }
+
+    /**
+     * Verifica la firma de un bloque; el resultado se guarda en la cache
+     * compartida de verificaciones, de modo que volver a verificar el mismo
+     * bloque con la misma firma y clave no repite la operacion.
+     */
     public static Boolean verificarFirma(PublicKey clave, byte[] contenido, byte[] firma) throws Exception {
-        Signature sig = Signature.getInstance("SHA256withRSA", "BC");
-        sig.initVerify(clave);
+        CacheVerificaciones cache = CacheVerificaciones.compartida();
+        byte[] entrada = CacheVerificaciones.entrada(clave, contenido, firma);
+        Boolean verificada = cache.consultar(entrada);
+        if (verificada != null) {
+            return verificada;
+        }
+
+        long inicio = Metricas.inicio();
+        Signature sig = PerfilCripto.paraFirma(clave).verificador(clave);
         sig.update(contenido);
-        return sig.verify(firma);
+        boolean result = sig.verify(firma);
+        Metricas.fin(Metricas.Etapa.VERIFICACION, inicio, contenido.length);
+        cache.guardar(entrada, result);
+        return result;
     }
 
     private static byte[] firmarDatos(PrivateKey key, byte[] data) throws Exception {
-        Signature signature = Signature.getInstance("SHA256withRSA", "BC");
-        signature.initSign(key);
+        long inicio = Metricas.inicio();
+        Signature signature = PerfilCripto.paraFirma(key).firmador(key);
         signature.update(data);
-        return signature.sign();
+        byte[] result = signature.sign();
+        Metricas.fin(Metricas.Etapa.FIRMA, inicio);
+        return result;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,309 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Servicio de sellado de larga duracion.
+ *
+ * Hace lo mismo que SellarFactura (verificar firmaEmpresa y añadir el sello
+ * al paquete), pero las solicitudes que llegan dentro de una ventana corta se
+ * agrupan en un lote y la Autoridad firma una sola vez la raiz del arbol de
+ * Merkle de sus hojas (ver ArbolMerkle), en lugar de firmar cada sello. Cada
+ * paquete recibe el sello de tiempo, su prueba de inclusion (bloque
+ * pruebaInclusion) y la firma de la raiz (firmaAutoridad), de modo que una
+ * operacion RSA cubre todo el lote.
+ *
+ * La verificacion de firmaEmpresa y la escritura del sello se hacen en el hilo
+ * de cada solicitud; solo la firma del lote esta serializada.
+ *
+ * Se puede usar dentro del proceso (sellar) o por TCP en la interfaz de
+ * loopback (escuchar y ClienteSellado). Protocolo, por solicitud:
+ * <pre>
+ *   cliente:  ruta del paquete (writeUTF)
+ *   servicio: correcto (writeBoolean) | sello de tiempo o mensaje de error (writeUTF)
+ * </pre>
+ * El paquete se sella en el mismo fichero, por lo que el servicio debe tener
+ * acceso a las mismas rutas que el cliente.
+ *
+ * Limite de confianza: cualquier proceso local puede conectarse al puerto, y
+ * el servicio escribe en los paquetes con sus propios permisos. Por eso solo
+ * se atienden rutas dentro del directorio base indicado en escuchar (las
+ * relativas se resuelven sobre el); se rechazan las que salen de el y las que
+ * pasan por enlaces simbolicos. Lo que haya dentro del directorio base lo puede
+ * hacer sellar cualquier usuario local, y quien pueda escribir en el podria
+ * cambiar un fichero por un enlace entre la comprobacion y la escritura, asi que
+ * solo el servicio (o usuarios de confianza) debe poder escribir en el.
+ * Las llamadas a sellar dentro del proceso no tienen esta restriccion.
+ */
+public class ServicioSellado implements Closeable {
+
+    public static final long VENTANA_MS = 10;
+    public static final int TAMANO_MAXIMO_LOTE = 1024;
+
+    private final PublicKey publicKeyEmpresa;
+    private final PrivateKey privateKeyAutoridad;
+    private final long ventanaNanos;
+    private final int tamanoMaximoLote;
+    private final BlockingQueue<Solicitud> pendientes = new LinkedBlockingQueue<>();
+    private final Thread firmante;
+    private volatile boolean cerrado;
+    private volatile ServerSocket servidor;
+
+    public ServicioSellado(PublicKey publicKeyEmpresa, PrivateKey privateKeyAutoridad) {
+        this(publicKeyEmpresa, privateKeyAutoridad, VENTANA_MS, TAMANO_MAXIMO_LOTE);
+    }
+
+    public ServicioSellado(PublicKey publicKeyEmpresa, PrivateKey privateKeyAutoridad,
+                           long ventanaMs, int tamanoMaximoLote) {
+        this.publicKeyEmpresa = publicKeyEmpresa;
+        this.privateKeyAutoridad = privateKeyAutoridad;
+        this.ventanaNanos = TimeUnit.MILLISECONDS.toNanos(ventanaMs);
+        this.tamanoMaximoLote = tamanoMaximoLote;
+        this.firmante = Thread.ofPlatform().name("sellado-lotes").daemon().start(this::firmarLotes);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4 || args.length > 6) {
+            System.out.println("Uso: java ServicioSellado <puerto> <directorio base> <clave publica Empresa> <clave privada Autoridad> [ventana ms] [tamaño maximo lote]");
+            System.exit(1);
+        }
+
+        ContextoCripto.registrarProvider();
+        int puerto = Integer.parseInt(args[0]);
+        Path directorio = Paths.get(args[1]);
+        long ventanaMs = (args.length >= 5) ? Long.parseLong(args[4]) : VENTANA_MS;
+        int tamanoMaximoLote = (args.length == 6) ? Integer.parseInt(args[5]) : TAMANO_MAXIMO_LOTE;
+
+        try {
+            PublicKey publicKeyEmpresa = AlmacenClaves.compartido().clavePublica(args[2]);
+            PrivateKey privateKeyAutoridad = AlmacenClaves.compartido().clavePrivada(args[3]);
+
+            ServicioSellado servicio = new ServicioSellado(publicKeyEmpresa, privateKeyAutoridad,
+                                                           ventanaMs, tamanoMaximoLote);
+            Runtime.getRuntime().addShutdownHook(new Thread(servicio::close));
+            System.out.println("Servicio de sellado escuchando en " + InetAddress.getLoopbackAddress().getHostAddress()
+                               + ":" + puerto + " (directorio base " + directorio + ")");
+            servicio.escuchar(puerto, directorio);
+        } catch (Exception e) {
+            System.err.println("Error en el servicio de sellado");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Verifica la firma de la empresa, espera a que se firme el lote en el que
+     * entra la solicitud y añade el sello al paquete de destino (puede ser el
+     * mismo fichero que el origen). Devuelve el sello de tiempo.
+     */
+    public byte[] sellar(Path origen, Path destino) throws Exception {
+        long inicio = Metricas.inicio();
+        byte[] firmaEmpresa = SellarFactura.comprobarFirmaEmpresa(origen, this.publicKeyEmpresa);
+
+        Solicitud solicitud = new Solicitud(ArbolMerkle.resumen(firmaEmpresa));
+        synchronized (this) {
+            if (this.cerrado) {
+                throw new IOException("Servicio de sellado cerrado");
+            }
+            this.pendientes.add(solicitud);
+        }
+
+        Paquete sello;
+        try {
+            sello = solicitud.sello.get();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+        SellarFactura.anadirSello(origen, destino, sello);
+        Metricas.fin(Metricas.Etapa.SELLADO, inicio, destino);
+        return sello.getContenidoBloque("selloTiempo");
+    }
+
+    /**
+     * Atiende conexiones en la interfaz de loopback hasta que se cierra el
+     * servicio. Cada conexion se atiende en un hilo virtual. Solo se sellan
+     * paquetes dentro del directorio indicado (ver la descripcion de la clase).
+     */
+    public void escuchar(int puerto, Path directorio) throws IOException {
+        Path base = directorio.toRealPath();
+        if (!Files.isDirectory(base)) {
+            throw new NotDirectoryException(directorio.toString());
+        }
+        this.servidor = new ServerSocket(puerto, 512, InetAddress.getLoopbackAddress());
+        try (ServerSocket servidor = this.servidor) {
+            while (!this.cerrado) {
+                Socket conexion = servidor.accept();
+                Thread.ofVirtual().name("sellado-conexion").start(() -> this.atender(conexion, base));
+            }
+        } catch (IOException e) {
+            if (!this.cerrado) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            this.cerrado = true;
+        }
+        try {
+            if (this.servidor != null) {
+                this.servidor.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error al cerrar el servicio de sellado: " + e);
+        }
+        try {
+            // Se firman las solicitudes que ya estaban en cola
+            this.firmante.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void atender(Socket conexion, Path base) {
+        try (Socket socket = conexion;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                String ruta;
+                try {
+                    ruta = in.readUTF();
+                } catch (EOFException e) {
+                    return;  // El cliente ha cerrado la conexion
+                }
+                try {
+                    Path paquete = rutaPermitida(base, ruta);
+                    byte[] selloTiempo = this.sellar(paquete, paquete);
+                    out.writeBoolean(true);
+                    out.writeUTF(new String(selloTiempo));
+                } catch (PaqueteInvalidoException e) {
+                    out.writeBoolean(false);
+                    out.writeUTF(e.getMessage());
+                } catch (Exception e) {
+                    out.writeBoolean(false);
+                    out.writeUTF("Error al sellar la factura: " + e);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error en la conexion de sellado: " + e);
+        }
+    }
+
+    /*
+     * Resuelve la ruta pedida sobre el directorio base (ya sin enlaces) y la
+     * rechaza si queda fuera de el, si algun componente es un enlace simbolico
+     * (la ruta real no coincide con la normalizada) o si no es un fichero.
+     */
+    private static Path rutaPermitida(Path base, String ruta) throws IOException, PaqueteInvalidoException {
+        Path paquete;
+        try {
+            paquete = base.resolve(ruta).normalize();
+        } catch (InvalidPathException e) {
+            throw new PaqueteInvalidoException("Ruta de paquete no valida: " + ruta);
+        }
+        if (!paquete.startsWith(base) || paquete.equals(base)) {
+            throw new PaqueteInvalidoException("Ruta fuera del directorio del servicio: " + ruta);
+        }
+        if (!Files.isRegularFile(paquete, LinkOption.NOFOLLOW_LINKS) || !paquete.toRealPath().equals(paquete)) {
+            throw new PaqueteInvalidoException("Ruta no permitida (no es un fichero o pasa por un enlace): " + ruta);
+        }
+        return paquete;
+    }
+
+    /*
+     * Bucle del hilo firmante: espera la primera solicitud, agrupa las que
+     * lleguen durante la ventana (hasta el tamaño maximo) y firma el lote.
+     */
+    private void firmarLotes() {
+        List<Solicitud> lote = new ArrayList<>();
+        while (!this.cerrado || !this.pendientes.isEmpty()) {
+            try {
+                Solicitud primera = this.pendientes.poll(100, TimeUnit.MILLISECONDS);
+                if (primera == null) {
+                    continue;
+                }
+                lote.add(primera);
+                long limite = System.nanoTime() + this.ventanaNanos;
+                while (lote.size() < this.tamanoMaximoLote) {
+                    long resto = limite - System.nanoTime();
+                    Solicitud siguiente = (resto > 0) ? this.pendientes.poll(resto, TimeUnit.NANOSECONDS) : null;
+                    if (siguiente == null) {
+                        break;
+                    }
+                    lote.add(siguiente);
+                }
+            } catch (InterruptedException e) {
+                this.pendientes.drainTo(lote);
+            }
+            if (!lote.isEmpty()) {
+                this.firmarLote(lote);
+                lote.clear();
+            }
+        }
+    }
+
+    private void firmarLote(List<Solicitud> lote) {
+        try {
+            byte[] selloTiempo = new Date().toString().getBytes();
+            List<byte[]> hojas = new ArrayList<>(lote.size());
+            for (Solicitud solicitud : lote) {
+                hojas.add(ArbolMerkle.hoja(solicitud.resumenPaquete, selloTiempo));
+            }
+
+            Signature signature = PerfilCripto.paraFirma(this.privateKeyAutoridad).firmador(this.privateKeyAutoridad);
+            long inicio = Metricas.inicio();
+            signature.update(ArbolMerkle.raiz(hojas));
+            byte[] firmaAutoridad = signature.sign();
+            Metricas.fin(Metricas.Etapa.FIRMA, inicio);
+
+            for (int i = 0; i < lote.size(); i++) {
+                Paquete sello = new Paquete();
+                sello.anadirBloque("selloTiempo", selloTiempo);
+                sello.anadirBloque("pruebaInclusion", ArbolMerkle.prueba(hojas, i));
+                sello.anadirBloque("firmaAutoridad", firmaAutoridad);
+                lote.get(i).sello.complete(sello);
+            }
+        } catch (Exception e) {
+            lote.forEach(solicitud -> solicitud.sello.completeExceptionally(e));
+        }
+    }
+
+    private static class Solicitud {
+
+        final byte[] resumenPaquete;
+        final CompletableFuture<Paquete> sello = new CompletableFuture<>();
+
+        Solicitud(byte[] resumenPaquete) {
+            this.resumenPaquete = resumenPaquete;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+
+/**
+ * Tipos de par de claves que se pueden generar. RSA se genera con el
+ * provider BC, como en GenerarClaves; las curvas elipticas con SunEC (la
+ * version de BC que se usa no incluye Ed25519 ni X25519).
+ */
+public enum TipoClave {
+
+    RSA_2048("RSA", "BC", 2048),
+    RSA_3072("RSA", "BC", 3072),
+    RSA_4096("RSA", "BC", 4096),
+    EC_P256("EC", "SunEC", 256),
+    ED25519("Ed25519", "SunEC", 255),
+    X25519("X25519", "SunEC", 255);
+
+    private final String algoritmo;
+    private final String provider;
+    private final int tamano;
+
+    TipoClave(String algoritmo, String provider, int tamano) {
+        this.algoritmo = algoritmo;
+        this.provider = provider;
+        this.tamano = tamano;
+    }
+
+    public String getAlgoritmo() {
+        return this.algoritmo;
+    }
+
+    public String getProvider() {
+        return this.provider;
+    }
+
+    public int getTamano() {
+        return this.tamano;
+    }
+
+    AlgorithmParameterSpec getParametros() {
+        switch (this) {
+            case EC_P256:
+                return new ECGenParameterSpec("secp256r1");
+            case ED25519:
+                return NamedParameterSpec.ED25519;
+            case X25519:
+                return NamedParameterSpec.X25519;
+            default:
+                return new RSAKeyGenParameterSpec(this.tamano, RSAKeyGenParameterSpec.F4);
+        }
+    }
+
+    /**
+     * Acepta tanto el nombre de la constante como la forma rsa-3072, ec-p256...
+     */
+    public static TipoClave deNombre(String nombre) {
+        return TipoClave.valueOf(nombre.trim().toUpperCase().replace('-', '_'));
+    }
+}
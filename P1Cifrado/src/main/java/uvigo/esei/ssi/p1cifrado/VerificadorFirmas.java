@@ -0,0 +1,303 @@
+package uvigo.esei.ssi.p1cifrado;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Verificacion en paralelo de muchas firmas (clave, datos, firma), pensada
+ * para comprobar rafagas de paquetes recibidos.
+ *
+ * Los trabajos se reparten en un ForkJoinPool dividiendo la lista por la
+ * mitad, de modo que los hilos libres roban trabajo a los ocupados. Las claves
+ * publicas repetidas (misma codificacion) dentro de una llamada se sustituyen
+ * por una sola instancia y cada hilo reutiliza su Signature (ContextoCripto). Si los datos de un
+ * trabajo no se pueden leer o una firma no es valida, el paquete se da por
+ * invalido y sus trabajos pendientes no se ejecutan.
+ */
+public class VerificadorFirmas implements Closeable {
+
+    private static final int UMBRAL = 4;
+
+    private final ForkJoinPool pool;
+
+    public VerificadorFirmas() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public VerificadorFirmas(int hilos) {
+        this.pool = new ForkJoinPool(hilos);
+    }
+
+    /**
+     * Origen de los datos firmados; se abre solo cuando se verifica el trabajo.
+     */
+    public interface FuenteDatos {
+
+        InputStream abrir() throws IOException;
+    }
+
+    public static class Trabajo {
+
+        final String paquete;
+        final PublicKey clave;
+        final FuenteDatos datos;
+        final byte[] firma;
+        final byte[] bytes;  // Los datos si estan en memoria (se consulta la cache de verificaciones)
+
+        private Trabajo(String paquete, PublicKey clave, FuenteDatos datos, byte[] bytes, byte[] firma) {
+            this.paquete = paquete;
+            this.clave = clave;
+            this.datos = datos;
+            this.bytes = bytes;
+            this.firma = firma;
+        }
+
+        public Trabajo(String paquete, PublicKey clave, FuenteDatos datos, byte[] firma) {
+            this(paquete, clave, datos, null, firma);
+        }
+
+        public Trabajo(String paquete, PublicKey clave, byte[] datos, byte[] firma) {
+            this(paquete, clave, () -> new ByteArrayInputStream(datos), datos, firma);
+        }
+    }
+
+    public static class Resultado {
+
+        public final String paquete;
+        public final boolean valido;
+        public final String motivo;  // null si es valido
+
+        Resultado(String paquete, String motivo) {
+            this.paquete = paquete;
+            this.valido = (motivo == null);
+            this.motivo = motivo;
+        }
+    }
+
+    /**
+     * Verifica todos los trabajos y devuelve un resultado por paquete, en el
+     * orden en que aparecen los paquetes en la lista.
+     */
+    public List<Resultado> verificar(List<Trabajo> trabajos) {
+        // Solo para esta llamada, para no retener las claves de lotes anteriores
+        Map<ByteBuffer, PublicKey> claves = new HashMap<>();
+        List<Trabajo> deduplicados = new ArrayList<>(trabajos.size());
+        for (Trabajo trabajo : trabajos) {
+            PublicKey clave = claves.computeIfAbsent(ByteBuffer.wrap(trabajo.clave.getEncoded()), k -> trabajo.clave);
+            deduplicados.add(new Trabajo(trabajo.paquete, clave, trabajo.datos, trabajo.bytes, trabajo.firma));
+        }
+
+        Map<String, String> fallos = new ConcurrentHashMap<>();
+        this.pool.invoke(new Verificacion(deduplicados, 0, deduplicados.size(), fallos));
+
+        Map<String, Resultado> resultados = new LinkedHashMap<>();
+        for (Trabajo trabajo : trabajos) {
+            resultados.computeIfAbsent(trabajo.paquete, p -> new Resultado(p, fallos.get(p)));
+        }
+        return new ArrayList<>(resultados.values());
+    }
+
+    /**
+     * Verifica las firmas de una lista de paquetes (ver trabajosPaquete). Los
+     * bloques de cada paquete tambien se leen en paralelo. Devuelve un
+     * resultado por paquete en el mismo orden.
+     */
+    public List<Resultado> verificarPaquetes(List<Path> ficheros, PublicKey publicKeyEmpresa,
+                                             PublicKey publicKeyAutoridad) {
+        Map<String, String> erroresLectura = new ConcurrentHashMap<>();
+        List<Trabajo> trabajos = this.pool.submit(() -> ficheros.parallelStream().flatMap(fichero -> {
+            try {
+                return trabajosPaquete(fichero, publicKeyEmpresa, publicKeyAutoridad).stream();
+            } catch (IOException e) {
+                erroresLectura.put(fichero.toString(), e.getMessage());
+                return Stream.<Trabajo>empty();
+            } catch (RuntimeException e) {
+                // Bloque mal formado (Base64, prueba de inclusion...): solo invalida este paquete
+                Metricas.fallo(Metricas.Fallo.FORMATO_NO_VALIDO);
+                erroresLectura.put(fichero.toString(), "Paquete mal formado: " + e);
+                return Stream.<Trabajo>empty();
+            }
+        }).collect(Collectors.toList())).join();
+
+        Map<String, Resultado> verificados = new HashMap<>();
+        for (Resultado resultado : this.verificar(trabajos)) {
+            verificados.put(resultado.paquete, resultado);
+        }
+        List<Resultado> resultados = new ArrayList<>(ficheros.size());
+        for (Path fichero : ficheros) {
+            String nombre = fichero.toString();
+            Resultado resultado = verificados.get(nombre);
+            resultados.add((resultado != null) ? resultado : new Resultado(nombre, erroresLectura.get(nombre)));
+        }
+        return resultados;
+    }
+
+    @Override
+    public void close() {
+        this.pool.shutdown();
+    }
+
+    /**
+     * Trabajos para comprobar las firmas de un paquete: firmaEmpresa (sobre la
+     * tabla de segmentos, el resumen o la factura cifrada completa) y, si esta sellado, firmaAutoridad
+     * (sobre el sello de tiempo o la raiz de Merkle del lote). Solo se leen los
+     * bloques pequeños; la factura cifrada se lee al verificar.
+     */
+    public static List<Trabajo> trabajosPaquete(Path fichero, PublicKey publicKeyEmpresa,
+                                                PublicKey publicKeyAutoridad) throws IOException {
+        String nombre = fichero.toString();
+        List<Trabajo> trabajos = new ArrayList<>(2);
+        try (PaqueteMapeado paquete = new PaqueteMapeado(fichero)) {
+            byte[] firmaEmpresa = paquete.getContenidoBloque("firmaEmpresa");
+            if (!paquete.contieneBloque("facturaCifrada") || firmaEmpresa == null) {
+                Metricas.fallo(Metricas.Fallo.BLOQUE_AUSENTE);
+                throw new PaqueteInvalidoException("Error: Bloques necesarios no encontrados en el paquete");
+            }
+            byte[] tablaSegmentos = paquete.getContenidoBloque("tablaSegmentos");
+            byte[] resumenFactura = paquete.getContenidoBloque("resumenFactura");
+            if (tablaSegmentos != null) {
+                trabajos.add(new Trabajo(nombre, publicKeyEmpresa, tablaSegmentos, firmaEmpresa));
+            } else if (resumenFactura != null) {
+                trabajos.add(new Trabajo(nombre, publicKeyEmpresa, resumenFactura, firmaEmpresa));
+            } else {
+                trabajos.add(new Trabajo(nombre, publicKeyEmpresa, () -> EntradaPaquete.abrir(fichero), firmaEmpresa));
+            }
+
+            byte[] selloTiempo = paquete.getContenidoBloque("selloTiempo");
+            byte[] firmaAutoridad = paquete.getContenidoBloque("firmaAutoridad");
+            if ((publicKeyAutoridad != null) && (selloTiempo != null) && (firmaAutoridad != null)) {
+                byte[] pruebaInclusion = paquete.getContenidoBloque("pruebaInclusion");
+                byte[] datos = selloTiempo;
+                if (pruebaInclusion != null) {
+                    byte[] hoja = ArbolMerkle.hoja(ArbolMerkle.resumen(firmaEmpresa), selloTiempo);
+                    datos = ArbolMerkle.raizDesdePrueba(hoja, pruebaInclusion);
+                }
+                trabajos.add(new Trabajo(nombre, publicKeyAutoridad, datos, firmaAutoridad));
+            }
+        }
+        return trabajos;
+    }
+
+    private static String verificarTrabajo(Trabajo trabajo) {
+        if (trabajo.bytes != null) {
+            try {
+                if (!SellarFactura.verificarFirma(trabajo.clave, trabajo.bytes, trabajo.firma)) {
+                    Metricas.fallo(Metricas.Fallo.FIRMA_NO_VALIDA);
+                    return "Firma no valida";
+                }
+                return null;
+            } catch (Exception e) {
+                return "Error al verificar la firma: " + e;
+            }
+        }
+
+        byte[] buffer = new byte[EmpaquetarFactura.TAMANO_BUFFER];
+        try {
+            long inicio = Metricas.inicio();
+            long bytes = 0;
+            Signature signature = PerfilCripto.paraFirma(trabajo.clave).verificador(trabajo.clave);
+            try (InputStream in = trabajo.datos.abrir()) {
+                int leidos = in.read(buffer);
+                while (leidos >= 0) {
+                    signature.update(buffer, 0, leidos);
+                    bytes += leidos;
+                    leidos = in.read(buffer);
+                }
+            } catch (IOException e) {
+                return "Error al leer los datos firmados: " + e.getMessage();
+            }
+            boolean valida = signature.verify(trabajo.firma);
+            Metricas.fin(Metricas.Etapa.VERIFICACION, inicio, bytes);
+            if (!valida) {
+                Metricas.fallo(Metricas.Fallo.FIRMA_NO_VALIDA);
+                return "Firma no valida";
+            }
+            return null;
+        } catch (Exception e) {
+            return "Error al verificar la firma: " + e;
+        }
+    }
+
+    @SuppressWarnings("serial")  // Solo se usa dentro del pool, nunca se serializa
+    private static class Verificacion extends RecursiveAction {
+
+        private final List<Trabajo> trabajos;
+        private final int desde;
+        private final int hasta;
+        private final Map<String, String> fallos;
+
+        Verificacion(List<Trabajo> trabajos, int desde, int hasta, Map<String, String> fallos) {
+            this.trabajos = trabajos;
+            this.desde = desde;
+            this.hasta = hasta;
+            this.fallos = fallos;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.hasta - this.desde > UMBRAL) {
+                int mitad = (this.desde + this.hasta) >>> 1;
+                invokeAll(new Verificacion(this.trabajos, this.desde, mitad, this.fallos),
+                          new Verificacion(this.trabajos, mitad, this.hasta, this.fallos));
+                return;
+            }
+            for (int i = this.desde; i < this.hasta; i++) {
+                Trabajo trabajo = this.trabajos.get(i);
+                if (this.fallos.containsKey(trabajo.paquete)) {
+                    continue;  // El paquete ya es invalido
+                }
+                String motivo = verificarTrabajo(trabajo);
+                if (motivo != null) {
+                    this.fallos.putIfAbsent(trabajo.paquete, motivo);
+                }
+            }
+        }
+    }
+
+    /*
+     * Contenido de facturaCifrada leido de su propio PaqueteMapeado, que se
+     * cierra con el stream (PaqueteMapeado no es thread-safe).
+     */
+    private static class EntradaPaquete extends FilterInputStream {
+
+        private final PaqueteMapeado paquete;
+
+        private EntradaPaquete(PaqueteMapeado paquete, InputStream contenido) {
+            super(contenido);
+            this.paquete = paquete;
+        }
+
+        static InputStream abrir(Path fichero) throws IOException {
+            PaqueteMapeado paquete = new PaqueteMapeado(fichero);
+            InputStream contenido = paquete.abrirBloque("facturaCifrada");
+            if (contenido == null) {
+                paquete.close();
+                Metricas.fallo(Metricas.Fallo.BLOQUE_AUSENTE);
+                throw new PaqueteInvalidoException("Error: Bloques necesarios no encontrados en el paquete");
+            }
+            return new EntradaPaquete(paquete, contenido);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.paquete.close();
+        }
+    }
+}
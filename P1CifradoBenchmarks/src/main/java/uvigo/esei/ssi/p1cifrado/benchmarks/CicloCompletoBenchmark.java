@@ -0,0 +1,75 @@
+package uvigo.esei.ssi.p1cifrado.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uvigo.esei.ssi.p1cifrado.DesempaquetarFactura;
+import uvigo.esei.ssi.p1cifrado.EmpaquetarFactura;
+import uvigo.esei.ssi.p1cifrado.FormatoPaquete;
+import uvigo.esei.ssi.p1cifrado.SellarFactura;
+
+/**
+ * Ciclo completo sobre ficheros: Empaquetar -> Sellar -> Desempaquetar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CicloCompletoBenchmark {
+
+    @Param({Datos.KB, Datos.MB, Datos.MB_100, Datos.GB})
+    public int tamano;
+
+    @Param({"TEXTO", "BINARIO"})
+    public FormatoPaquete formato;
+
+    private KeyPair clavesHacienda;
+    private KeyPair clavesEmpresa;
+    private KeyPair clavesAutoridad;
+    private Path directorio;
+    private Path factura;
+
+    @Setup
+    public void preparar() throws Exception {
+        this.clavesHacienda = Datos.clavesRSA();
+        this.clavesEmpresa = Datos.clavesRSA();
+        this.clavesAutoridad = Datos.clavesRSA();
+        this.directorio = Files.createTempDirectory("ciclo");
+        this.factura = Files.write(this.directorio.resolve("factura.json"), Datos.aleatorios(this.tamano));
+    }
+
+    @TearDown
+    public void limpiar() throws Exception {
+        try (var ficheros = Files.list(this.directorio)) {
+            for (Path fichero : (Iterable<Path>) ficheros::iterator) {
+                Files.delete(fichero);
+            }
+        }
+        Files.delete(this.directorio);
+    }
+
+    @Benchmark
+    public byte[] empaquetarSellarDesempaquetar() throws Exception {
+        Path paquete = this.directorio.resolve("paquete");
+        EmpaquetarFactura.empaquetar(this.factura, paquete, this.clavesHacienda.getPublic(),
+                this.clavesEmpresa.getPrivate(), this.formato);
+        SellarFactura.sellar(paquete, paquete, this.clavesEmpresa.getPublic(), this.clavesAutoridad.getPrivate());
+        return DesempaquetarFactura.desempaquetar(paquete, this.directorio.resolve("salida.json"),
+                this.clavesHacienda.getPrivate(), this.clavesAutoridad.getPublic());
+    }
+}
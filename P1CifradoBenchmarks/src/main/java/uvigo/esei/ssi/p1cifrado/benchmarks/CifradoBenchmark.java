@@ -0,0 +1,83 @@
+package uvigo.esei.ssi.p1cifrado.benchmarks;
+
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uvigo.esei.ssi.p1cifrado.ContextoCripto;
+
+/**
+ * Cifrado/descifrado AES y firma/verificacion SHA256withRSA del contenido, con
+ * los mismos algoritmos que usan EmpaquetarFactura y SellarFactura. AES se mide
+ * con los dos providers entre los que elige SelectorProveedores; la firma usa
+ * BC, como el perfil RSA.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class CifradoBenchmark {
+
+    @Param({Datos.KB, Datos.MB, Datos.MB_100, Datos.GB})
+    public int tamano;
+
+    @Param({"BC", "SunJCE"})
+    public String proveedorAES;
+
+    private byte[] contenido;
+    private byte[] cifrado;
+    private byte[] firma;
+    private SecretKey claveAES;
+    private KeyPair clavesRSA;
+
+    @Setup
+    public void preparar() throws Exception {
+        ContextoCripto.registrarProvider();
+        this.contenido = Datos.aleatorios(this.tamano);
+        KeyGenerator generador = KeyGenerator.getInstance("AES", this.proveedorAES);
+        generador.init(128);
+        this.claveAES = generador.generateKey();
+        this.clavesRSA = Datos.clavesRSA();
+        this.cifrado = this.cifrarAES();
+        this.firma = this.firmar();
+    }
+
+    @Benchmark
+    public byte[] cifrarAES() throws Exception {
+        return ContextoCripto.cifrador("AES", this.proveedorAES, Cipher.ENCRYPT_MODE, this.claveAES).doFinal(this.contenido);
+    }
+
+    @Benchmark
+    public byte[] descifrarAES() throws Exception {
+        return ContextoCripto.cifrador("AES", this.proveedorAES, Cipher.DECRYPT_MODE, this.claveAES).doFinal(this.cifrado);
+    }
+
+    @Benchmark
+    public byte[] firmar() throws Exception {
+        Signature signature = ContextoCripto.firmador("SHA256withRSA", "BC", this.clavesRSA.getPrivate());
+        signature.update(this.contenido);
+        return signature.sign();
+    }
+
+    @Benchmark
+    public boolean verificar() throws Exception {
+        Signature signature = ContextoCripto.verificador("SHA256withRSA", "BC", this.clavesRSA.getPublic());
+        signature.update(this.contenido);
+        return signature.verify(this.firma);
+    }
+}
@@ -0,0 +1,56 @@
+package uvigo.esei.ssi.p1cifrado.benchmarks;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uvigo.esei.ssi.p1cifrado.ContextoCripto;
+
+/**
+ * Envoltura RSA de la clave AES (claveSimetricaCifrada) y su recuperacion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClavesBenchmark {
+
+    private SecretKey claveAES;
+    private KeyPair clavesRSA;
+    private byte[] claveCifrada;
+
+    @Setup
+    public void preparar() throws Exception {
+        ContextoCripto.registrarProvider();
+        KeyGenerator generador = KeyGenerator.getInstance("AES");  // Solo importan los bytes de la clave
+        generador.init(128);
+        this.claveAES = generador.generateKey();
+        this.clavesRSA = Datos.clavesRSA();
+        this.claveCifrada = this.envolverClave();
+    }
+
+    @Benchmark
+    public byte[] envolverClave() throws Exception {
+        return ContextoCripto.cifrador("RSA/ECB/PKCS1Padding", "BC", Cipher.ENCRYPT_MODE, this.clavesRSA.getPublic())
+                .doFinal(this.claveAES.getEncoded());
+    }
+
+    @Benchmark
+    public byte[] desenvolverClave() throws Exception {
+        return ContextoCripto.cifrador("RSA/ECB/PKCS1Padding", "BC", Cipher.DECRYPT_MODE, this.clavesRSA.getPrivate())
+                .doFinal(this.claveCifrada);
+    }
+}
@@ -0,0 +1,45 @@
+package uvigo.esei.ssi.p1cifrado.benchmarks;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.SplittableRandom;
+import uvigo.esei.ssi.p1cifrado.ContextoCripto;
+
+/**
+ * Datos de prueba comunes a los benchmarks.
+ */
+final class Datos {
+
+    /**
+     * Tamaños de carga por defecto: 1 KB, 1 MB, 100 MB y 1 GB.
+     */
+    static final String KB = "1024";
+    static final String MB = "1048576";
+    static final String MB_100 = "104857600";
+    static final String GB = "1073741824";
+
+    private Datos() {
+    }
+
+    /*
+     * Contenido pseudoaleatorio (no comprimible, como un texto cifrado).
+     */
+    static byte[] aleatorios(int tamano) {
+        byte[] datos = new byte[tamano];
+        SplittableRandom random = new SplittableRandom(tamano);
+        for (int i = 0; i < tamano; i += 8) {
+            long valor = random.nextLong();
+            for (int j = 0; (j < 8) && (i + j < tamano); j++) {
+                datos[i + j] = (byte) (valor >>> (8 * j));
+            }
+        }
+        return datos;
+    }
+
+    static KeyPair clavesRSA() throws Exception {
+        ContextoCripto.registrarProvider();
+        KeyPairGenerator generador = KeyPairGenerator.getInstance("RSA", "BC");
+        generador.initialize(2048);
+        return generador.generateKeyPair();
+    }
+}
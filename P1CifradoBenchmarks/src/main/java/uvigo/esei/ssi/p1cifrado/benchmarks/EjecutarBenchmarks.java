@@ -0,0 +1,31 @@
+package uvigo.esei.ssi.p1cifrado.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Lanza los benchmarks aceptando las mismas opciones que JMH. Si no se indica
+ * otra cosa (-rf / -rff), los resultados se guardan en JSON en
+ * resultados-jmh.json para poder compararlos entre versiones.
+ *
+ * Ejemplos:
+ *   java -jar benchmarks.jar
+ *   java -jar benchmarks.jar PaqueteBenchmark -p tamano=1024,1048576
+ */
+public class EjecutarBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions opciones = new CommandLineOptions(args);
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(opciones);
+        if (!opciones.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!opciones.getResult().hasValue()) {
+            builder.result("resultados-jmh.json");
+        }
+        new Runner(builder.build()).run();
+    }
+}
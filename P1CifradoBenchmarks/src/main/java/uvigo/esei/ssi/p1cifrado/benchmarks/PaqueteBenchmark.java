@@ -0,0 +1,84 @@
+package uvigo.esei.ssi.p1cifrado.benchmarks;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uvigo.esei.ssi.p1cifrado.EscritorPaquete;
+import uvigo.esei.ssi.p1cifrado.FormatoPaquete;
+import uvigo.esei.ssi.p1cifrado.Paquete;
+
+/**
+ * Escritura y lectura de paquetes (Paquete.escribirPaquete / leerPaquete) y
+ * codificacion de un bloque aislado (BASE64 partido en lineas en formato texto).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class PaqueteBenchmark {
+
+    @Param({Datos.KB, Datos.MB, Datos.MB_100, Datos.GB})
+    public int tamano;
+
+    @Param({"TEXTO", "BINARIO"})
+    public FormatoPaquete formato;
+
+    private byte[] contenido;
+    private Paquete paquete;
+    private Path fichero;
+
+    @Setup
+    public void preparar() throws Exception {
+        this.contenido = Datos.aleatorios(this.tamano);
+        this.paquete = new Paquete();
+        this.paquete.setFormato(this.formato);
+        this.paquete.anadirBloque("facturaCifrada", this.contenido);
+        this.paquete.anadirBloque("firmaEmpresa", Datos.aleatorios(256));
+        this.fichero = Files.createTempFile("paquete", ".bench");
+        try (OutputStream out = Files.newOutputStream(this.fichero)) {
+            this.paquete.escribirPaquete(out);
+        }
+    }
+
+    @TearDown
+    public void limpiar() throws Exception {
+        Files.deleteIfExists(this.fichero);
+    }
+
+    @Benchmark
+    public void escribirPaquete() throws Exception {
+        this.paquete.escribirPaquete(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Paquete leerPaquete() throws Exception {
+        Paquete leido = new Paquete();
+        try (InputStream in = Files.newInputStream(this.fichero)) {
+            leido.leerPaquete(in);
+        }
+        return leido;
+    }
+
+    @Benchmark
+    public void escribirBloque() throws Exception {
+        try (EscritorPaquete escritor = EscritorPaquete.crear(OutputStream.nullOutputStream(), this.formato)) {
+            escritor.escribirBloque("facturaCifrada", this.contenido);
+        }
+    }
+}